@@ -0,0 +1,540 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ Cache Class
+
+ A write-back disk block cache that sits between the file system and the
+ Disk thread. Every block the file system reads or writes goes through
+ cread/cwrite into one of the cache frames; a dirty frame reaches the disk
+ when it is chosen as a victim, when sync( ) or flush( ) is called, or when
+ the Flusher thread calls writeBehind( ). The Flusher is woken early by
+ waitForPressure( ) once more than three quarters of the frames are dirty.
+ The replacement algorithm is chosen when the cache is created:
+
+ SECOND_CHANCE  enhanced second-chance: prefers victims that are neither
+                referenced nor dirty, then unreferenced dirty ones
+ LRU            least recently used frame
+ TWO_Q          2Q: new blocks enter a FIFO (A1in) and are only promoted to
+                the LRU main queue (Am) when they are touched again after
+                being evicted, so one sequential scan cannot flush hot blocks
+
+ The file system reads and writes through ByteBuffer slices: a run of bytes
+ is copied straight between the frames and the caller's buffer, so no block
+ sized temporary is needed for a partial block.
+
+ prefetch( ) starts asynchronous reads of blocks the file system expects to
+ need soon, all in one vectored request. Each lands in the buffer of its
+ batch and is moved into a frame when it is read, or when a later
+ prefetch( ) finds it complete. The misses of a read are fetched the same
+ way, and the cache is neither held while they are queued nor while their
+ reader waits for the disk.
+
+ @file Cache.java
+ @section 430 Final Project
+*/
+public class Cache {
+   public final static int SECOND_CHANCE = 0;
+   public final static int LRU = 1;
+   public final static int TWO_Q = 2;
+
+   private int blockSize;
+   private int policy;
+   private Entry[] pageTable;                     // one entry per frame
+   private byte[][] pages;                        // frame contents
+   private HashMap<Integer, Integer> frameOf;     // block id -> frame
+   private int victim;                            // second-chance clock hand
+   private int dirtyFrames;                       // # frames not on disk
+   private int highWater;                         // dirtyFrames that wake
+                                                  // the Flusher
+   private long clock;                            // LRU / FIFO time stamps
+
+   // 2Q bookkeeping
+   private int a1inMax;                           // frames given to A1in
+   private int a1inSize;                          // frames currently in A1in
+   private LinkedList<Integer> a1out;             // ids evicted from A1in
+   private int a1outMax;
+
+   // reads still in flight, by block id
+   private HashMap<Integer, Prefetch> inFlight;
+   private int maxInFlight;
+
+   private class Entry {
+      public final static int INVALID = -1;
+      public int frame = INVALID;                 // disk block cached here
+      public boolean reference = false;
+      public boolean dirty = false;
+      public long lastUsed = 0;                   // LRU and Am ordering
+      public long loaded = 0;                     // A1in FIFO ordering
+      public boolean inA1 = false;                // 2Q: in A1in, not Am
+   }
+
+   // A read of one block in a batch queued with SysLib.areadv. It is put in
+   // inFlight with the cache held, but queued only once the cache is let
+   // go, so a full disk queue never holds up the cache. Several threads may
+   // wait for it, but the kernel hands the request back only once: the
+   // first to wait collects it and the others wait for that thread.
+   private class Prefetch {
+      public byte[] data;                         // the batch's buffer
+      public int at;                              // where the block lands
+      private int request = -1;                   // id, once it is queued
+      private boolean collecting = false;         // a thread called await
+      private boolean finished = false;           // data holds the block
+
+      // the read is queued as request, or could not be (id < 0)
+      public synchronized void started( int id ) {
+         request = id;
+         finished = id < 0;
+         notifyAll( );
+      }
+
+      public void await( ) {
+         synchronized ( this ) {
+            if ( collecting ) {
+               while ( !finished )
+                  pause( );
+               return;
+            }
+            collecting = true;
+            while ( request < 0 && !finished )    // still being queued
+               pause( );
+            if ( finished )
+               return;
+         }
+         SysLib.await( request );
+         synchronized ( this ) {
+            finished = true;
+            notifyAll( );
+         }
+      }
+
+      // True if await( ) would not have to wait for the disk. A poll( )
+      // that finds the read done collects it, so await( ) must not.
+      public synchronized boolean done( ) {
+         if ( !finished && !collecting && request >= 0 &&
+              SysLib.poll( request ) != 0 )
+            finished = true;
+         return finished;
+      }
+
+      private void pause( ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+      }
+   }
+
+   public Cache( int blockSize, int cacheBlocks ) {
+      this( blockSize, cacheBlocks, SECOND_CHANCE );
+   }
+
+   public Cache( int blockSize, int cacheBlocks, int policy ) {
+      this.blockSize = blockSize;
+      this.policy = policy;
+      if ( cacheBlocks < 1 )
+         cacheBlocks = 1;
+      pageTable = new Entry[cacheBlocks];
+      pages = new byte[cacheBlocks][];
+      for ( int i = 0; i < cacheBlocks; i++ ) {
+         pageTable[i] = new Entry( );
+         pages[i] = new byte[blockSize];
+      }
+      frameOf = new HashMap<Integer, Integer>( );
+      victim = 0;
+      dirtyFrames = 0;
+      highWater = Math.max( 1, cacheBlocks * 3 / 4 );
+      clock = 0;
+      a1inMax = Math.max( 1, cacheBlocks / 4 );
+      a1inSize = 0;
+      a1out = new LinkedList<Integer>( );
+      a1outMax = Math.max( 1, cacheBlocks / 2 );
+      inFlight = new HashMap<Integer, Prefetch>( );
+      maxInFlight = Math.max( 1, cacheBlocks / 2 );
+   }
+
+   // Return a frame holding no block, or -1 if every frame is in use
+   private int findFreePage( ) {
+      for ( int i = 0; i < pageTable.length; i++ )
+         if ( pageTable[i].frame == Entry.INVALID )
+            return i;
+      return -1;
+   }
+
+   // Enhanced second-chance: look for (ref, dirty) = (0, 0) without touching
+   // anything, then for (0, 1) while clearing reference bits; repeat
+   private int nextSecondChanceVictim( ) {
+      while ( true ) {
+         for ( int i = 0; i < pageTable.length; i++ ) {
+            int page = ( victim + i ) % pageTable.length;
+            if ( !pageTable[page].reference && !pageTable[page].dirty ) {
+               victim = ( page + 1 ) % pageTable.length;
+               return page;
+            }
+         }
+         for ( int i = 0; i < pageTable.length; i++ ) {
+            int page = ( victim + i ) % pageTable.length;
+            if ( !pageTable[page].reference ) {
+               victim = ( page + 1 ) % pageTable.length;
+               return page;
+            }
+            pageTable[page].reference = false;
+         }
+      }
+   }
+
+   private int nextLruVictim( ) {
+      int page = 0;
+      for ( int i = 1; i < pageTable.length; i++ )
+         if ( pageTable[i].lastUsed < pageTable[page].lastUsed )
+            page = i;
+      return page;
+   }
+
+   // 2Q: evict the oldest A1in block once A1in has outgrown its share,
+   // remembering its id in A1out; otherwise evict the LRU block of Am
+   private int nextTwoQVictim( ) {
+      int oldest = -1;
+      int lru = -1;
+      for ( int i = 0; i < pageTable.length; i++ ) {
+         Entry e = pageTable[i];
+         if ( e.inA1 ) {
+            if ( oldest == -1 || e.loaded < pageTable[oldest].loaded )
+               oldest = i;
+         } else if ( lru == -1 || e.lastUsed < pageTable[lru].lastUsed )
+            lru = i;
+      }
+      if ( oldest != -1 && ( a1inSize > a1inMax || lru == -1 ) ) {
+         a1out.addLast( pageTable[oldest].frame );
+         if ( a1out.size( ) > a1outMax )
+            a1out.removeFirst( );
+         return oldest;
+      }
+      return lru;
+   }
+
+   private int nextVictim( ) {
+      switch ( policy ) {
+         case LRU:
+            return nextLruVictim( );
+         case TWO_Q:
+            return nextTwoQVictim( );
+         default:
+            return nextSecondChanceVictim( );
+      }
+   }
+
+   private void writeBack( int page ) {
+      if ( pageTable[page].frame != Entry.INVALID && pageTable[page].dirty ) {
+         SysLib.rawwrite( pageTable[page].frame, pages[page] );
+         pageTable[page].dirty = false;
+         dirtyFrames--;
+      }
+   }
+
+   // Mark a frame as just used, for whichever policy is active
+   private void touch( int page ) {
+      pageTable[page].reference = true;
+      pageTable[page].lastUsed = ++clock;
+   }
+
+   // Find a frame for blockId, evicting (and writing back) a victim if the
+   // cache is full. The returned frame is registered but its data is stale.
+   private int allocPage( int blockId ) {
+      int page = findFreePage( );
+      if ( page == -1 ) {
+         page = nextVictim( );
+         writeBack( page );
+         if ( pageTable[page].inA1 )
+            a1inSize--;
+         frameOf.remove( pageTable[page].frame );
+      }
+      Entry e = pageTable[page];
+      e.frame = blockId;
+      e.dirty = false;
+      e.loaded = ++clock;
+      // 2Q: a block seen again shortly after leaving A1in is hot, so it goes
+      // straight to Am; anything else starts in A1in
+      e.inA1 = !a1out.remove( ( Integer )blockId );
+      if ( e.inA1 )
+         a1inSize++;
+      frameOf.put( blockId, page );
+      return page;
+   }
+
+   // The read of a block that is not cached: its read-ahead if one was
+   // started, or else a new read, added to fresh for the caller to start( )
+   // once it has let go of the cache. Either way it is in inFlight until it
+   // is installed, so readers of the same block share one disk request.
+   private Prefetch fetch( int blockId, ArrayList<Integer> fresh ) {
+      Prefetch ahead = inFlight.get( blockId );
+      if ( ahead == null ) {
+         ahead = new Prefetch( );
+         inFlight.put( blockId, ahead );
+         fresh.add( blockId );
+      }
+      return ahead;
+   }
+
+   // Queue the new reads of blockIds as a single vectored disk request.
+   // Called without holding the cache.
+   private void start( ArrayList<Integer> blockIds, Prefetch reads[] ) {
+      if ( blockIds.isEmpty( ) )
+         return;
+      int[] blocks = new int[blockIds.size( )];
+      int[] ids = new int[blocks.length];
+      byte[] data = new byte[blocks.length * blockSize];
+      for ( int i = 0; i < blocks.length; i++ ) {
+         blocks[i] = blockIds.get( i );
+         reads[i].data = data;
+         reads[i].at = i * blockSize;
+      }
+      if ( SysLib.areadv( blocks, data, ids ) < 0 )
+         Arrays.fill( ids, -1 );
+      for ( int i = 0; i < blocks.length; i++ )
+         reads[i].started( ids[i] );
+   }
+
+   // The in-flight reads of blockIds, in the same order. Called with the
+   // cache held, right after fetch( ) registered them.
+   private Prefetch[] reads( ArrayList<Integer> blockIds ) {
+      Prefetch[] reads = new Prefetch[blockIds.size( )];
+      for ( int i = 0; i < reads.length; i++ )
+         reads[i] = inFlight.get( blockIds.get( i ) );
+      return reads;
+   }
+
+   // Move a finished read into a frame, unless another thread has already
+   // done so or flush( ) has dropped it meanwhile
+   private void install( int blockId, Prefetch ahead ) {
+      if ( inFlight.get( blockId ) != ahead )
+         return;
+      inFlight.remove( blockId );
+      int page = allocPage( blockId );
+      System.arraycopy( ahead.data, ahead.at, pages[page], 0, blockSize );
+      touch( page );
+   }
+
+   public boolean read( int blockId, byte buffer[] ) {
+      return read( new int[] { blockId }, 0, ByteBuffer.wrap( buffer ) );
+   }
+
+   // Read several blocks into consecutive blockSize slots of buffer.
+   public boolean read( int blockIds[], byte buffer[] ) {
+      return read( blockIds, 0, ByteBuffer.wrap( buffer ) );
+   }
+
+   // Read the blocks as one run of bytes, starting offset bytes into the
+   // first, into buffer from its position, up to its limit or the end of the
+   // last block. Cached blocks are copied while the cache is held; the
+   // misses are queued as one vectored disk request once the cache is let
+   // go, and the cache is not held while the disk carries it out, so other
+   // threads keep using it meanwhile.
+   // Each byte is copied once, from its frame or its disk read into buffer,
+   // whatever kind of buffer it is; the misses are installed afterwards.
+   public boolean read( int blockIds[], int offset, ByteBuffer buffer ) {
+      int start = buffer.position( );
+      int end = buffer.limit( );
+      ByteBuffer to = buffer.duplicate( );
+      Prefetch[] misses = new Prefetch[blockIds.length];
+      ArrayList<Integer> fresh = new ArrayList<Integer>( );
+      Prefetch[] reads;
+      int blocks = 0;                              // blocks buffer reaches
+      synchronized ( this ) {
+         for ( int i = 0; i < blockIds.length; i++ )
+            if ( blockIds[i] < 0 )
+               return false;
+         for ( ; blocks < blockIds.length; blocks++ ) {
+            int from = ( blocks == 0 ) ? offset : 0;
+            int at = start + blocks * blockSize - offset + from;
+            int length = Math.min( blockSize - from, end - at );
+            if ( length <= 0 )
+               break;
+            Integer page = frameOf.get( blockIds[blocks] );
+            if ( page == null )
+               misses[blocks] = fetch( blockIds[blocks], fresh );
+            else {
+               to.position( at );
+               to.put( pages[page], from, length );
+               touch( page );
+            }
+         }
+         reads = reads( fresh );
+      }
+
+      start( fresh, reads );
+      for ( int i = 0; i < blocks; i++ ) {
+         if ( misses[i] == null )
+            continue;
+         misses[i].await( );
+         int from = ( i == 0 ) ? offset : 0;
+         int at = start + i * blockSize - offset + from;
+         to.position( at );
+         to.put( misses[i].data, misses[i].at + from,
+                 Math.min( blockSize - from, end - at ) );
+      }
+      buffer.position( Math.max( start, Math.min( end, start + blocks *
+                                                  blockSize - offset ) ) );
+
+      synchronized ( this ) {
+         for ( int i = 0; i < blocks; i++ )
+            if ( misses[i] != null )
+               install( blockIds[i], misses[i] );
+      }
+      return true;
+   }
+
+   public boolean write( int blockId, byte buffer[] ) {
+      return write( blockId, 0, ByteBuffer.wrap( buffer, 0, blockSize ),
+                    true ) == blockSize;
+   }
+
+   // Write buffer, from its position, into the block starting at offset,
+   // up to the end of the buffer or of the block, and return the number of
+   // bytes written or -1. The bytes come straight from buffer into the
+   // frame. The rest of the block is kept, which means reading it first if
+   // it is not cached, unless fresh says it holds nothing yet; it is then
+   // zeroed. A block with a read on its way is written once the read is in,
+   // so the read cannot later install stale data. The cache is let go while
+   // waiting for a read, as in read( ).
+   public int write( int blockId, int offset, ByteBuffer buffer,
+                     boolean fresh ) {
+      if ( blockId < 0 || offset < 0 || offset >= blockSize )
+         return -1;
+      int length = Math.min( blockSize - offset, buffer.remaining( ) );
+      Prefetch ahead = null;
+      ArrayList<Integer> started = new ArrayList<Integer>( );
+      while ( true ) {
+         Prefetch[] reads;
+         synchronized ( this ) {
+            if ( ahead != null )
+               install( blockId, ahead );
+            Integer page = frameOf.get( blockId );
+            started.clear( );
+            if ( page == null && ( inFlight.containsKey( blockId ) ||
+                                   length < blockSize && !fresh ) ) {
+               ahead = fetch( blockId, started );   // merge with the disk
+               reads = reads( started );
+            } else {
+               if ( page == null ) {
+                  page = allocPage( blockId );
+                  if ( length < blockSize )
+                     Arrays.fill( pages[page], ( byte )0 );
+               }
+               buffer.get( pages[page], offset, length );
+               if ( !pageTable[page].dirty ) {
+                  pageTable[page].dirty = true;
+                  if ( ++dirtyFrames > highWater )
+                     notifyAll( );              // wake the Flusher
+               }
+               touch( page );
+               return length;
+            }
+         }
+         start( started, reads );
+         ahead.await( );
+      }
+   }
+
+   // Start reading blocks that are neither cached nor already on their way,
+   // without waiting for them, as one vectored disk request. Finished
+   // read-ahead is moved into frames first; no more is started while
+   // maxInFlight blocks are outstanding.
+   public void prefetch( int blockIds[] ) {
+      ArrayList<Integer> fresh = new ArrayList<Integer>( );
+      Prefetch[] reads;
+      synchronized ( this ) {
+         Integer[] started = inFlight.keySet( ).toArray( new Integer[0] );
+         for ( int i = 0; i < started.length; i++ ) {
+            Prefetch ahead = inFlight.get( started[i] );
+            if ( ahead.done( ) ) {
+               ahead.await( );
+               install( started[i], ahead );
+            }
+         }
+
+         for ( int i = 0; i < blockIds.length; i++ ) {
+            if ( inFlight.size( ) >= maxInFlight )
+               break;
+            if ( blockIds[i] < 0 || frameOf.containsKey( blockIds[i] ) )
+               continue;
+            fetch( blockIds[i], fresh );
+         }
+         reads = reads( fresh );
+      }
+      start( fresh, reads );
+   }
+
+   // Queue a write of every dirty block, in block order, and mark the frames
+   // clean. With copy set each write is given a copy of its frame, so the
+   // frame may change again before the write is done. Returns the ids of the
+   // writes.
+   private int[] queueDirty( boolean copy ) {
+      Integer[] blocks = frameOf.keySet( ).toArray( new Integer[0] );
+      Arrays.sort( blocks );
+      int[] ids = new int[dirtyFrames];
+      int issued = 0;
+      for ( int i = 0; i < blocks.length; i++ ) {
+         int page = frameOf.get( blocks[i] );
+         if ( pageTable[page].dirty ) {
+            byte[] data = copy ? pages[page].clone( ) : pages[page];
+            ids[issued++] = SysLib.awrite( blocks[i], data );
+            pageTable[page].dirty = false;
+         }
+      }
+      dirtyFrames = 0;
+      return ids;
+   }
+
+   // Write back all dirty blocks, keeping them cached. Every write is
+   // queued before any is waited for, so the disk services them in one pass
+   public synchronized void sync( ) {
+      int[] ids = queueDirty( false );
+      for ( int i = 0; i < ids.length; i++ )
+         SysLib.await( ids[i] );
+   }
+
+   // Like sync( ), but the cache is only held while the writes are queued,
+   // not while the disk carries them out. A block that is read back before
+   // its write is done is still up to date, as the disk services requests
+   // for the same block in the order they were queued.
+   public void writeBehind( ) {
+      int[] ids;
+      synchronized ( this ) {
+         ids = queueDirty( true );
+      }
+      for ( int i = 0; i < ids.length; i++ )
+         SysLib.await( ids[i] );
+   }
+
+   // Wait until more than highWater frames are dirty, or millis have passed
+   public synchronized void waitForPressure( long millis ) {
+      long deadline = System.currentTimeMillis( ) + millis;
+      long left = millis;
+      while ( dirtyFrames <= highWater && left > 0 ) {
+         try {
+            wait( left );
+         } catch ( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+         left = deadline - System.currentTimeMillis( );
+      }
+   }
+
+   // Write back all dirty blocks and invalidate the whole cache
+   public synchronized void flush( ) {
+      sync( );
+      for ( int i = 0; i < pageTable.length; i++ ) {
+         pageTable[i].frame = Entry.INVALID;
+         pageTable[i].reference = false;
+         pageTable[i].inA1 = false;
+      }
+      frameOf.clear( );
+      a1inSize = 0;
+      a1out.clear( );
+      for ( Prefetch ahead : inFlight.values( ) )
+         ahead.await( );
+      inFlight.clear( );
+   }
+}
@@ -9,7 +9,20 @@
  * that contains its file name (in maximum 30 characters = in max. 60 bytes in
  * Java) and the corresponding inode number. The directory receives the maximum
  * number of inodes to be created, (i.e., thus the max. number of files to be
- * created) and keeps track of which inode numbers are in use.
+ * created) and keeps track of which inode numbers are in use. An in-memory
+ * open-addressing hash index maps names to inode numbers, and free inode
+ * numbers are kept on a stack, so namei and ialloc do not scan the table.
+ * Files and directories below the root live in DirectoryFile's; the root
+ * still hands out their inode numbers and records them under "/" followed
+ * by their own name, which no root lookup ever asks for. The methods are
+ * synchronized since both FileTable and FileSystem call them.
+ *
+ * The image written to the "/" file holds the sizes, then the names, then
+ * the hash index, so a mounted directory can be paged in from the file
+ * instead of being read whole: an entry is read the first time its size or
+ * name is needed, and the index 256 slots at a time as lookups probe it. A
+ * lookup thus reads about two blocks however large the directory is. The
+ * sizes are read in one go when the first iNumber is handed out.
  *
  * ASSUMPTIONS
  * 1. It is assumed that the user is running this file in ThreadOS's directory.
@@ -26,9 +39,35 @@ public class Directory {
     private final static int BYTE_ALLOC = 64;               //maxJava + 4 short
     private final static int NEXT_CHUNK = 4;                //Used for offset
     private final static int ERROR = -1;                    //For clean reading
+    private final static short EMPTY = -1;                  //Unused hash slot
+    private final static int PAGE_SLOTS = 256;              //index slots paged
+                                                            //in at a time
     private int dirSize;                                    //Directory size
     private int fsizes[];                                   //File sizes
     private char fnames[][];                                //File names
+    private short index[];                                  //Name hash index
+    private int mask;                                       //index.length - 1
+    private short freeSlots[];                              //Free iNumbers
+    private int freeTop;                                    //# free iNumbers
+    private boolean dirty[];                                //Changed entries
+    private boolean pageDirty[];                            //Changed index
+    private boolean freeKnown;                              //freeSlots built
+    private Pager pager;                                    //reads "/", null
+                                                            //once all is read
+    private boolean known[];                                //fsizes[i] read
+    private boolean named[];                                //fnames[i] read
+    private boolean paged[];                                //index page read
+
+    // -------------------------------------------------------------------------
+    // Pager
+    /*
+     * SUMMARY
+     * Reads buffer.length bytes of the "/" file from offset. FileSystem hands
+     * one to page( ) when it mounts the disk.
+     */
+    public interface Pager {
+        void read( int offset, byte[] buffer );
+    }
 
     private final static boolean SUCCESS = true;
     private final static boolean FAILURE = false;
@@ -51,6 +90,247 @@ public class Directory {
         String root = "/";                                  //entry 0 is "/"
         fsizes[0] = root.length( );                         //save size of "/"
         root.getChars( 0, fsizes[0], fnames[0], 0 );        //place in fnames[0]
+        int size = 2;                                       //index size is a
+        while(size < 2 * maxInumber) size <<= 1;            //power of two
+        index = new short[size];                            //at least half
+        mask = size - 1;                                    //empty
+        freeSlots = new short[maxInumber];                  //room for all
+        rebuildIndex();                                     //index "/" only
+        dirty = new boolean[maxInumber];                    //nothing on disk
+        Arrays.fill(dirty, true);                           //yet, so all dirty
+    }
+
+    // -------------------------------------------------------------------------
+    // page
+    /*
+     * SUMMARY
+     * Makes the directory stand for the image in the "/" file, which has to
+     * be imageSize( ) bytes long, without reading any of it. Entries and index
+     * slots are read through pager when they are first needed.
+     */
+    public synchronized void page( Pager pager ) {
+        this.pager = pager;                                 //read on demand
+        known = new boolean[dirSize];                       //no size read
+        named = new boolean[dirSize];                       //no name read
+        paged = new boolean[pageDirty.length];              //no index read
+        freeKnown = false;                                  //no free stack
+        Arrays.fill(dirty, false);                          //same as on disk
+        Arrays.fill(pageDirty, false);
+    }
+
+    // -------------------------------------------------------------------------
+    // size / name / slot
+    /*
+     * SUMMARY
+     * Return the size or the name of an entry, or a slot of the hash index,
+     * reading it from the "/" file first if the directory is paged and it has
+     * not been read yet. setSlot changes an index slot and marks its page to
+     * be written on sync.
+     */
+    private int size( int i ) {
+        if(pager != null && !known[i]) load(i);             //fault it in
+        return fsizes[i];
+    }
+
+    private char[] name( int i ) {
+        if(pager != null && !named[i]) load(i);             //fault it in
+        return fnames[i];
+    }
+
+    private short slot( int i ) {
+        if(pager != null && !paged[i / PAGE_SLOTS]) loadPage(i / PAGE_SLOTS);
+        return index[i];
+    }
+
+    private void setSlot( int i, short value ) {
+        slot(i);                                            //page it in first
+        index[i] = value;                                   //then change it
+        pageDirty[i / PAGE_SLOTS] = true;                   //write on sync
+    }
+
+    // -------------------------------------------------------------------------
+    // load / loadPage / loadSizes / loadAll
+    /*
+     * SUMMARY
+     * Read parts of the image through the pager: one entry's size and name,
+     * one page of the hash index, every size not read yet, or everything,
+     * after which the directory no longer needs the pager.
+     */
+    private void load( int i ) {
+        if(!known[i]){                                      //size first
+            byte[] size = new byte[NEXT_CHUNK];
+            pager.read(i * NEXT_CHUNK, size);
+            fsizes[i] = SysLib.bytes2int(size, 0);
+            known[i] = true;
+        }
+        byte[] name = new byte[maxJava];                    //then the name
+        pager.read(NEXT_CHUNK * dirSize + i * maxJava, name);
+        String tmpS = new String(name, 0, maxJava);         //create a string ob
+        tmpS.getChars(0, fsizes[i], fnames[i], 0);          //place in fnames[i]
+        named[i] = true;
+    }
+
+    private void loadPage( int page ) {
+        int from = page * PAGE_SLOTS;                       //first slot
+        byte[] data = new byte[2 * Math.min(PAGE_SLOTS, index.length - from)];
+        pager.read(BYTE_ALLOC * dirSize + 2 * from, data);  //index follows names
+        for(int i = 0; i < data.length / 2; i++){
+            index[from + i] = SysLib.bytes2short(data, 2 * i);
+        }
+        paged[page] = true;
+    }
+
+    private void loadSizes( ) {
+        byte[] data = new byte[NEXT_CHUNK * dirSize];       //whole size table
+        pager.read(0, data);
+        for(int i = 0; i < dirSize; i++){                   //keep newer sizes
+            if(!known[i]) fsizes[i] = SysLib.bytes2int(data, i * NEXT_CHUNK);
+            known[i] = true;
+        }
+    }
+
+    private void loadAll( ) {
+        if(pager == null) return;                           //all in memory
+        loadSizes();
+        for(int i = 0; i < dirSize; i++){
+            if(!named[i]) load(i);
+        }
+        for(int p = 0; p < paged.length; p++){
+            if(!paged[p]) loadPage(p);
+        }
+        pager = null;                                       //no more faults
+    }
+
+    // -------------------------------------------------------------------------
+    // buildFreeSlots
+    /*
+     * SUMMARY
+     * Fills the free slot stack from the sizes, pushed from the top down so
+     * the lowest free iNumber is handed out first.
+     */
+    private void buildFreeSlots( ) {
+        if(pager != null) loadSizes();                      //all sizes needed
+        freeTop = 0;                                        //empty the stack
+        for(int i = dirSize - 1; i >= 0; i--){              //loop downwards
+            if(fsizes[i] == 0) freeSlots[freeTop++] = (short) i;
+        }
+        freeKnown = true;
+    }
+
+    // -------------------------------------------------------------------------
+    // grow
+    /*
+     * SUMMARY
+     * Makes room for maxInumber entries once the superblock has added inodes.
+     * The new slots are free, and the hash index is rebuilt at a size that
+     * keeps it at least half empty. The image changes size, so every entry is
+     * marked to be written again.
+     */
+    public synchronized void grow( int maxInumber ) {
+        if(maxInumber <= dirSize) return;                   //nothing to add
+        loadAll();                                          //layout shifts
+        fsizes = Arrays.copyOf(fsizes, maxInumber);         //new sizes are 0
+        fnames = Arrays.copyOf(fnames, maxInumber);         //keep old names
+        for(int i = dirSize; i < maxInumber; i++){          //loop new entries
+            fnames[i] = new char[maxChars];                 //room for a name
+        }
+        dirSize = maxInumber;                               //save direct. size
+        int size = index.length;                            //index size stays
+        while(size < 2 * maxInumber) size <<= 1;            //a power of two
+        index = new short[size];                            //at least half
+        mask = size - 1;                                    //empty
+        freeSlots = new short[maxInumber];                  //room for all
+        rebuildIndex();                                     //index all names
+        dirty = new boolean[maxInumber];                    //image is resized
+        Arrays.fill(dirty, true);                           //so all dirty
+    }
+
+    // -------------------------------------------------------------------------
+    // rebuildIndex
+    /*
+     * SUMMARY
+     * Clears the hash index and the free slot stack and fills them again from
+     * fsizes and fnames, which must all be in memory. Every index page is
+     * marked to be written.
+     */
+    private void rebuildIndex( ) {
+        for(int i = 0; i < index.length; i++){              //loop the index
+            index[i] = EMPTY;                               //clear it
+        }
+        pageDirty = new boolean[(index.length + PAGE_SLOTS - 1) / PAGE_SLOTS];
+        Arrays.fill(pageDirty, true);                       //index is new
+        for(int i = dirSize - 1; i >= 0; i--){              //loop downwards
+            if(fsizes[i] > 0) insert((short) i);            //index its name
+        }
+        buildFreeSlots();                                   //push free slots
+    }
+
+    // -------------------------------------------------------------------------
+    // hash
+    /*
+     * SUMMARY
+     * Hashes the first len chars of a name the same way String.hashCode does,
+     * so a char[] entry and a String hash alike without creating any object.
+     */
+    private static int hash( char[] name, int len ) {
+        int h = 0;                                          //same as String
+        for(int i = 0; i < len; i++){                       //loop chars
+            h = 31 * h + name[i];                           //mix in char
+        }
+        return h ^ (h >>> 16);                              //spread high bits
+    }
+
+    private static int hash( String name ) {
+        int h = name.hashCode( );                           //cached by String
+        return h ^ (h >>> 16);                              //spread high bits
+    }
+
+    // -------------------------------------------------------------------------
+    // matches
+    /*
+     * SUMMARY
+     * Compares the name stored in a slot with filename char by char.
+     */
+    private boolean matches( short slot, String filename ) {
+        if(size(slot) != filename.length()) return false;   //size differs
+        char[] name = name(slot);                           //read if paged
+        for(int i = 0; i < fsizes[slot]; i++){              //loop chars
+            if(name[i] != filename.charAt(i)) return false;
+        }
+        return true;                                        //same name
+    }
+
+    // -------------------------------------------------------------------------
+    // insert / remove
+    /*
+     * SUMMARY
+     * Add a used slot to the hash index with linear probing, or take it out
+     * again. Removal shifts later entries of the same probe run back so that
+     * no tombstones are needed and lookups stay short.
+     */
+    private void insert( short slot ) {
+        int i = hash(name(slot), size(slot)) & mask;        //home position
+        while(slot(i) != EMPTY) i = (i + 1) & mask;         //probe forward
+        setSlot(i, slot);                                   //store iNumber
+    }
+
+    private void remove( short slot ) {
+        int i = hash(name(slot), size(slot)) & mask;        //home position
+        while(slot(i) != slot){                             //find the slot
+            if(slot(i) == EMPTY) return;                    //not indexed
+            i = (i + 1) & mask;                             //probe forward
+        }
+        setSlot(i, EMPTY);                                  //open a hole
+        for(int j = (i + 1) & mask; slot(j) != EMPTY; j = (j + 1) & mask){
+            short moved = slot(j);                          //next in the run
+            int home = hash(name(moved), size(moved)) & mask;
+            //move it into the hole unless its home lies in (hole, j]
+            if(((j - home) & mask) >= ((j - i) & mask)){
+                setSlot(i, moved);                          //fill the hole
+                setSlot(j, EMPTY);                          //new hole
+                i = j;                                      //keep shifting
+            }
+        }
     }
     
     // -------------------------------------------------------------------------
@@ -61,18 +341,27 @@ public class Directory {
      * with a byte array read from the disk. It accomplishes this by using
      * SysLib's bytes2int() function that captures the appropriate size of file.
      * After this, it loops over the file name array to read in the data content
+     * An image of imageSize( ) bytes holds dirSize entries and the hash index,
+     * an older one only entries. The hash index is built anew either way.
      */       
-    public void bytes2directory( byte[] data ) {
+    public synchronized void bytes2directory( byte[] data ) {
+        pager = null;                                       //all read here
+        int entries = (data.length == imageSize()) ? dirSize
+                    : data.length / BYTE_ALLOC;             //# entries stored
+        int stored = Math.min(dirSize, entries);
         int offset = 0;                                     //initialize offset
-        for(int i = 0; i < dirSize; i++){                   //loop directory
+        for(int i = 0; i < stored; i++){                    //loop directory
             fsizes[i] = SysLib.bytes2int(data, offset);     //save file size
             offset += NEXT_CHUNK;                           //increment offset
         }
-        for(int i = 0; i < dirSize; i++){                   //loop directory
+        offset = NEXT_CHUNK * entries;                      //names follow sizes
+        for(int i = 0; i < stored; i++){                    //loop directory
             String tmpS = new String(data, offset, maxJava);//create a string ob
             tmpS.getChars(0, fsizes[i], fnames[i], 0);      //place in fnames[i]
             offset += maxJava;                              //increment offset
         }
+        rebuildIndex();                                     //index new names
+        Arrays.fill(dirty, false);                          //same as on disk
     }           
 
     // -------------------------------------------------------------------------
@@ -85,41 +374,119 @@ public class Directory {
      * the directory to capture and save the file sizes. Then, the actual data.
      * After this work is performed, it returns this byte array.
      */         
-    public byte[] directory2bytes( ) {
-        byte[] dirInfo = new byte[BYTE_ALLOC * dirSize];    //make new byte[]
-        int offset = 0;                                     //initialize offset
-        for(int i = 0; i < dirSize; i++){                   //loop directory
-            SysLib.int2bytes(fsizes[i], dirInfo, offset);   //fill up directory
-            offset += NEXT_CHUNK;                           //increment offset
+    public synchronized byte[] directory2bytes( ) {
+        return directory2bytes(0, imageSize());             //whole image
+    }
+
+    // -------------------------------------------------------------------------
+    // directory2bytes (range)
+    /*
+     * SUMMARY
+     * Same as above for the length bytes of the image starting at offset, so a
+     * single block of the "/" file can be rebuilt. Only the sizes, names and
+     * index slots overlapping the range are converted, and paged in first if
+     * need be. Offset and length are multiples of 4, as block boundaries are.
+     */
+    public synchronized byte[] directory2bytes( int offset, int length ) {
+        byte[] dirInfo = new byte[length];                  //make new byte[]
+        int end = offset + length;                          //end of the range
+        for(int i = offset / NEXT_CHUNK; i < dirSize && i * NEXT_CHUNK < end;
+            i++){                                           //sizes in range
+            SysLib.int2bytes(size(i), dirInfo, i * NEXT_CHUNK - offset);
         }
-        for(int i = 0; i < dirSize; i++){                   //loop directory
-            String tmpS = new String(fnames[i],0,fsizes[i]);//tmp string
+        int names = NEXT_CHUNK * dirSize;                   //names follow sizes
+        for(int i = Math.max(0, (offset - names) / maxJava);
+            i < dirSize && names + i * maxJava < end; i++){ //names in range
+            String tmpS = new String(name(i),0,fsizes[i]);  //tmp string
             byte[] tmpByte = tmpS.getBytes();               //turn into byte[]
-            System.arraycopy(tmpByte, 0, dirInfo, offset, tmpByte.length);
-            offset += maxJava;                              //increment offset
+            int pos = names + i * maxJava;                  //where it belongs
+            int from = Math.max(pos, offset);               //part that falls
+            int to = Math.min(pos + tmpByte.length, end);   //in the range
+            if(from < to){
+                System.arraycopy(tmpByte, from - pos, dirInfo, from - offset,
+                                 to - from);
+            }
+        }
+        int slots = BYTE_ALLOC * dirSize;                   //index follows names
+        for(int i = Math.max(0, (offset - slots) / 2);
+            i < index.length && slots + 2 * i < end; i++){  //slots in range
+            SysLib.short2bytes(slot(i), dirInfo, slots + 2 * i - offset);
         }
         return dirInfo;                                     //return new byte[]
     }
+
+    // -------------------------------------------------------------------------
+    // imageSize
+    /*
+     * SUMMARY
+     * Returns the size in bytes of the image written by directory2bytes.
+     */
+    public synchronized int imageSize( ) {
+        return BYTE_ALLOC * dirSize + 2 * index.length;     //entries and index
+    }
+
+    // -------------------------------------------------------------------------
+    // dirtyBlocks
+    /*
+     * SUMMARY
+     * Returns, in ascending order, the blocks of the directory image holding
+     * the size or the name of an entry or a page of the hash index changed
+     * since the last call, and marks them clean. An entry changed after this
+     * call is reported again by the next one.
+     */
+    public synchronized int[] dirtyBlocks( int blockSize ) {
+        boolean[] blocks = new boolean[(imageSize() + blockSize - 1) / blockSize];
+        int count = 0;                                      //# dirty blocks
+        int names = NEXT_CHUNK * dirSize;                   //names follow sizes
+        for(int i = 0; i < dirSize; i++){                   //loop directory
+            if(!dirty[i]) continue;                         //unchanged entry
+            dirty[i] = false;                               //mark it clean
+            int[] spots = { i * NEXT_CHUNK, names + i * maxJava,
+                            names + (i + 1) * maxJava - 1 };//size, name ends
+            for(int spot : spots){
+                if(!blocks[spot / blockSize]) count++;      //newly dirty
+                blocks[spot / blockSize] = true;            //block to write
+            }
+        }
+        for(int p = 0; p < pageDirty.length; p++){          //loop index pages
+            if(!pageDirty[p]) continue;                     //unchanged page
+            pageDirty[p] = false;                           //mark it clean
+            int from = BYTE_ALLOC * dirSize + 2 * p * PAGE_SLOTS;
+            int to = BYTE_ALLOC * dirSize
+                   + 2 * Math.min((p + 1) * PAGE_SLOTS, index.length) - 1;
+            for(int b = from / blockSize; b <= to / blockSize; b++){
+                if(!blocks[b]) count++;                     //newly dirty
+                blocks[b] = true;                           //block to write
+            }
+        }
+        int[] list = new int[count];                        //collect blocks
+        for(int b = 0, n = 0; b < blocks.length; b++){
+            if(blocks[b]) list[n++] = b;                    //in block order
+        }
+        return list;                                        //return the list
+    }
   
     // -------------------------------------------------------------------------
     // ialloc
     /*
      * SUMMARY
      * This function is responsible for allocating a new inode number for a 
-     * specific filename passed in as a string. It uses a ternary operator to 
-     * condense the code nessessary to get the smaller of two lengths. After
-     * completion, the iNumber location is returned to the calling function.
+     * specific filename passed in as a string. The iNumber is popped from the
+     * free slot stack. It uses a ternary operator to condense the code
+     * nessessary to get the smaller of two lengths. After completion, the
+     * name is indexed and the iNumber is returned to the calling function.
      */      
-    public short ialloc( String filename ) {
-        for(short i = 0; i < dirSize; i++){                 //loop the directory
-            if(fsizes[i] == 0){                             //find an empty file
-                int fs = filename.length()>maxChars?maxChars:filename.length();
-                fsizes[i] = fs;                             //save the file size
-                filename.getChars(0,fsizes[i],fnames[i],0); //copy from string
-                return i;                                   //return the iNumber
-            }
-        }
-        return ERROR;                                       //No free spaces
+    public synchronized short ialloc( String filename ) {
+        if(!freeKnown) buildFreeSlots();                    //first allocation
+        if(freeTop == 0) return ERROR;                      //No free spaces
+        short i = freeSlots[--freeTop];                     //pop a free slot
+        int fs = filename.length()>maxChars?maxChars:filename.length();
+        fsizes[i] = fs;                                     //save the file size
+        filename.getChars(0,fsizes[i],fnames[i],0);         //copy from string
+        if(pager != null) named[i] = true;                  //not the old name
+        insert(i);                                        //index the name
+        dirty[i] = true;                                    //write on sync
+        return i;                                           //return the iNumber
     }
     
     // -------------------------------------------------------------------------
@@ -128,11 +495,15 @@ public class Directory {
      * SUMMARY
      * When a valid iNumber is passed into this method, it goes to that iNumber 
      * location in the directory and marks its size to 0 -- meaning that it can 
-     * be overwritten, if needed.
+     * be overwritten, if needed. The name leaves the hash index and the
+     * iNumber goes back on the free slot stack. The root "/" cannot be freed.
      */    
-    public boolean ifree( short iNumber ) {
-        if(iNumber < maxChars && fsizes[iNumber] > 0){      //If number is valid
+    public synchronized boolean ifree( short iNumber ) {
+        if(iNumber > 0 && iNumber < dirSize && size(iNumber) > 0){
+            remove(iNumber);                                //unindex the name
             fsizes[iNumber] = 0;                            //Mark to be deleted
+            if(freeKnown) freeSlots[freeTop++] = iNumber;   //slot is free again
+            dirty[iNumber] = true;                          //write on sync
             return SUCCESS;                                 //File was found
         } else {                                     
             return FAILURE;                                 //File not found
@@ -143,19 +514,15 @@ public class Directory {
     // namei
     /*
      * SUMMARY
-     * Assuming all filenames are unique, this function loops over the directory
-     * to try to find if a certain file is valid. If the size of the file being
-     * searched for matches that of the size of some file in the directory, this
-     * loop creates a new string to compare contents. In the event of a file 
-     * being found successfully, the iNumber (location) is returned to the 
-     * calling function. 
+     * Assuming all filenames are unique, this function probes the hash index
+     * from the home position of the name until it reaches an empty slot. Each
+     * candidate is compared char by char, so no objects are created. In the
+     * event of a file being found successfully, the iNumber (location) is
+     * returned to the calling function. 
      */    
-    public short namei( String filename ) {
-     for(short i = 0; i < dirSize; i++){                    //loop directory
-        if(filename.length() == fsizes[i]){                 //same string size
-            String tmp = new String(fnames[i],0,fsizes[i]); //create a string 
-            if(filename.equals(tmp)) return i;              //return iNumber 
-        }
+    public synchronized short namei( String filename ) {
+     for(int i = hash(filename) & mask; slot(i) != EMPTY; i = (i + 1) & mask){
+        if(matches(index[i], filename)) return index[i];    //return iNumber 
     }
     return ERROR;                                           //File not found
     }
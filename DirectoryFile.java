@@ -0,0 +1,248 @@
+/**
+  DirectoryFile Class
+  A directory below the root, stored as an ordinary file of hashed buckets
+
+  Each block of the file is one bucket of eight 64-byte entries. An entry
+  holds the inode number (0 = empty, -1 = deleted), the name length and up
+  to 30 chars of the name. A name hashes to one bucket and is looked up from
+  there with linear probing over the following buckets, so finding a name
+  reads the bucket it hashes to and rarely more. The first entry of bucket 0
+  is a header with the number of live entries, the number of deleted ones
+  and the number of buckets. The file is rebuilt with more buckets once it
+  is three quarters full.
+
+  @file DirectoryFile.java
+  @section 430 Final Project
+ */
+
+public class DirectoryFile {
+    public final static int maxChars = 30;      // max chars of a name
+    private final static int blockSize = 512;
+    private final static int entrySize = 64;    // bytes per entry
+    private final static int perBucket = blockSize / entrySize;
+    private final static short EMPTY = 0;       // slot never used
+    private final static short DELETED = -1;    // slot of a removed entry
+    private FileSystem fs;                      // does the block I/O
+    private FileTableEntry ftEnt;               // the open directory file
+    private int entries;                        // live entries
+    private int deleted;                        // deleted slots
+    private int buckets;                        // blocks in the file
+
+    /**
+    Constructor
+
+    Reads the header of a directory file opened for "w+" by the caller,
+    who also closes it when done.
+    @param fs the file system used to read and write the file
+    @param ftEnt the directory file opened for "w+"
+    */
+    public DirectoryFile(FileSystem fs, FileTableEntry ftEnt) {
+        this.fs = fs;
+        this.ftEnt = ftEnt;
+        byte[] header = readBucket(0);
+        entries = SysLib.bytes2int(header, 0);
+        deleted = SysLib.bytes2int(header, 4);
+        buckets = SysLib.bytes2int(header, 8);
+        if (buckets < 1)                        // emptied by a failed delete
+            buckets = 1;
+    }
+
+    /**
+    init
+
+    Writes an empty directory of a single bucket into a new, empty file.
+    @param fs the file system used to write the file
+    @param ftEnt the new directory file opened for "w+"
+    @return true if the bucket could be written
+    */
+    public static boolean init(FileSystem fs, FileTableEntry ftEnt) {
+        byte[] bucket = new byte[blockSize];
+        SysLib.int2bytes(1, bucket, 8);
+        fs.seek(ftEnt, 0, 0);
+        return fs.write(ftEnt, bucket) == blockSize;
+    }
+
+    /**
+    size
+
+    @return the number of entries in the directory
+    */
+    public int size() {
+        return entries;
+    }
+
+    /**
+    lookup
+
+    Probes the buckets from the one name hashes to until it reaches an
+    empty slot.
+    @param name the entry to find
+    @return the inode number of name, or -1 if it is not in the directory
+    */
+    public short lookup(String name) {
+        int b = bucketOf(name);
+        for (int n = 0; n < buckets; n++, b = (b + 1) % buckets) {
+            byte[] bucket = readBucket(b);
+            for (int s = (b == 0) ? 1 : 0; s < perBucket; s++) {
+                short iNumber = SysLib.bytes2short(bucket, s * entrySize);
+                if (iNumber == EMPTY)
+                    return -1;
+                if (iNumber != DELETED && matches(bucket, s, name))
+                    return iNumber;
+            }
+        }
+        return -1;
+    }
+
+    /**
+    insert
+
+    Adds name to the directory in the first empty or deleted slot along its
+    probe sequence, growing the file first if it is getting full. The caller
+    makes sure name is not already present.
+    @param name the entry to add, at most maxChars long
+    @param iNumber its inode number
+    @return true if the entry was added
+    */
+    public boolean insert(String name, short iNumber) {
+        if (name.length() == 0 || name.length() > maxChars)
+            return false;
+        if ((entries + deleted + 1) * 4 > (buckets * perBucket - 1) * 3
+            && !grow())
+            return false;
+        int b = bucketOf(name);
+        for (int n = 0; n < buckets; n++, b = (b + 1) % buckets) {
+            byte[] bucket = readBucket(b);
+            for (int s = (b == 0) ? 1 : 0; s < perBucket; s++) {
+                short slot = SysLib.bytes2short(bucket, s * entrySize);
+                if (slot == EMPTY || slot == DELETED) {
+                    if (slot == DELETED)
+                        deleted--;
+                    putEntry(bucket, s, name, iNumber);
+                    entries++;
+                    return writeBucket(b, bucket) && writeHeader();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+    remove
+
+    Marks the slot of name deleted, so probes for names further along its
+    run still find them.
+    @param name the entry to remove
+    @return the inode number name had, or -1 if it was not found
+    */
+    public short remove(String name) {
+        int b = bucketOf(name);
+        for (int n = 0; n < buckets; n++, b = (b + 1) % buckets) {
+            byte[] bucket = readBucket(b);
+            for (int s = (b == 0) ? 1 : 0; s < perBucket; s++) {
+                short iNumber = SysLib.bytes2short(bucket, s * entrySize);
+                if (iNumber == EMPTY)
+                    return -1;
+                if (iNumber != DELETED && matches(bucket, s, name)) {
+                    SysLib.short2bytes(DELETED, bucket, s * entrySize);
+                    entries--;
+                    deleted++;
+                    writeBucket(b, bucket);
+                    writeHeader();
+                    return iNumber;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+    grow
+
+    Rehashes every live entry into a file with enough buckets to be at most
+    half full, dropping the deleted slots. The new image is written over the
+    old one in a single write, and never has fewer buckets than before.
+    @return true if the new image was written
+    */
+    private boolean grow() {
+        int newBuckets = buckets;
+        while ((entries + 1) * 2 > newBuckets * perBucket - 1)
+            newBuckets *= 2;
+        byte[] old = new byte[buckets * blockSize];
+        fs.seek(ftEnt, 0, 0);
+        fs.read(ftEnt, old);
+
+        byte[] image = new byte[newBuckets * blockSize];
+        for (int e = 1; e < buckets * perBucket; e++) {
+            short iNumber = SysLib.bytes2short(old, e * entrySize);
+            if (iNumber == EMPTY || iNumber == DELETED)
+                continue;
+            int len = SysLib.bytes2short(old, e * entrySize + 2);
+            int h = 0;
+            for (int i = 0; i < len; i++)
+                h = 31 * h + (char) SysLib.bytes2short(old, e * entrySize + 4 + i * 2);
+            int slot = ((h & 0x7fffffff) % newBuckets) * perBucket;
+            if (slot == 0)
+                slot = 1;
+            while (SysLib.bytes2short(image, slot * entrySize) != EMPTY)
+                slot = Math.max(1, (slot + 1) % (newBuckets * perBucket));
+            System.arraycopy(old, e * entrySize, image, slot * entrySize,
+                             entrySize);
+        }
+        SysLib.int2bytes(entries, image, 0);
+        SysLib.int2bytes(0, image, 4);
+        SysLib.int2bytes(newBuckets, image, 8);
+        fs.seek(ftEnt, 0, 0);
+        if (fs.write(ftEnt, image) != image.length)
+            return false;
+        deleted = 0;
+        buckets = newBuckets;
+        return true;
+    }
+
+    // the bucket a name starts probing from; same hash as String.hashCode
+    private int bucketOf(String name) {
+        return (name.hashCode() & 0x7fffffff) % buckets;
+    }
+
+    // compares the name stored in slot s of bucket with name
+    private boolean matches(byte[] bucket, int s, String name) {
+        int offset = s * entrySize;
+        if (SysLib.bytes2short(bucket, offset + 2) != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++)
+            if ((char) SysLib.bytes2short(bucket, offset + 4 + i * 2)
+                != name.charAt(i))
+                return false;
+        return true;
+    }
+
+    private void putEntry(byte[] bucket, int s, String name, short iNumber) {
+        int offset = s * entrySize;
+        SysLib.short2bytes(iNumber, bucket, offset);
+        SysLib.short2bytes((short) name.length(), bucket, offset + 2);
+        for (int i = 0; i < name.length(); i++)
+            SysLib.short2bytes((short) name.charAt(i), bucket, offset + 4 + i * 2);
+    }
+
+    private byte[] readBucket(int b) {
+        byte[] bucket = new byte[blockSize];
+        fs.seek(ftEnt, b * blockSize, 0);
+        fs.read(ftEnt, bucket);
+        return bucket;
+    }
+
+    private boolean writeBucket(int b, byte[] bucket) {
+        fs.seek(ftEnt, b * blockSize, 0);
+        return fs.write(ftEnt, bucket) == blockSize;
+    }
+
+    // rewrites the header, keeping the entries that share bucket 0
+    private boolean writeHeader() {
+        byte[] bucket = readBucket(0);
+        SysLib.int2bytes(entries, bucket, 0);
+        SysLib.int2bytes(deleted, bucket, 4);
+        SysLib.int2bytes(buckets, bucket, 8);
+        return writeBucket(0, bucket);
+    }
+}
@@ -1,5 +1,23 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
 
+// The disk image lives in the host file "DISK", mapped into memory. Blocks
+// written since the last SYNC are held in memory; SYNC first appends them to
+// the journal file "DISK.journal" and closes it with a commit record, then
+// copies them into the mapping and forces just those blocks to the file,
+// then empties the journal. A crash during SYNC leaves either a journal
+// without a commit record, which is thrown away, or a committed one, which
+// is replayed at the next boot. Either way DISK holds the image of one SYNC
+// and the file system on it never has to be reformatted. If the file cannot
+// be mapped, the image is kept in a heap buffer and the blocks are written
+// to the file directly. A SYNC that cannot write the journal or DISK fails
+// and keeps its blocks for the next one. Once maxPending blocks are held,
+// they are appended to the journal without a commit record and read back
+// from there, so memory stays bounded and DISK still only changes at a
+// SYNC, whose commit record then covers them too.
 public class Disk extends Thread {
     public static final int blockSize = 512;
     private final int trackSize = 10;
@@ -7,109 +25,420 @@ public class Disk extends Thread {
     private final int delayPerTrack = 1;
     private int diskSize;
 
-    private byte data[];
+    private ByteBuffer data;
+    private HashMap<Integer, byte[]> pending;   // written since last SYNC
+    private final String journalFile = "DISK.journal";
+    private final int commitMagic = 0x434f4d54; // "COMT"
+    private final int commitSize = 16;          // magic, count, checksum
+    private final int maxPending = 256;         // blocks held in memory
+                                                // before they are spilled
+    private int nextSpill = maxPending;         // pending size that spills
+    private HashMap<Integer, Long> spilled;     // block -> its latest data
+                                                // in the journal
+    private RandomAccessFile log;               // the journal, while open
+    private long logLength;                     // bytes of records in it
+    private CRC32 logCrc;                       // checksum of those bytes
 
-    private int command;
-    private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
 
-    private byte[] buffer;
+    // Order in which queued requests are serviced
+    public static final int FCFS = 0;   // arrival order
+    public static final int SSTF = 1;   // shortest seek first
+    public static final int SCAN = 2;   // elevator, sweeping up and down
+    public static final int CLOOK = 3;  // elevator, sweeping up only
+    private final int maxRequests = 64;
+    private int policy;
+    private Vector<Request> queue;
+    private boolean goingUp;
+
     private int currentBlockId;
     private int targetBlockId;
 
+    // One outstanding disk command. The thread that issued it waits on the
+    // request itself, so only that thread is woken when it completes.
+    public static class Request {
+	private final int command;
+	private final int blockId;
+	private final byte[] buffer;
+	private final int offset;
+	private boolean done;
+	private boolean failed;
+
+	private Request( int command, int blockId, byte buffer[], int offset ) {
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.buffer = buffer;
+	    this.offset = offset;
+	    done = false;
+	    failed = false;
+	}
+
+	public synchronized boolean isDone( ) {
+	    return done;
+	}
+
+	// false if the request is done and could not be carried out
+	public synchronized boolean succeeded( ) {
+	    return !failed;
+	}
+
+	public synchronized void waitDone( ) {
+	    while ( done == false ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	}
+
+	private synchronized void complete( boolean ok ) {
+	    done = true;
+	    failed = !ok;
+	    notifyAll( );
+	}
+    }
+
     public Disk( int totalBlocks ) {
+	this( totalBlocks, FCFS );
+    }
+
+    public Disk( int totalBlocks, int policy ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.policy = policy;
+	queue = new Vector<Request>( );
+	goingUp = true;
 	currentBlockId = 0;
 	targetBlockId = 0;
-	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
-		ifstream.available( ) : data.length; 
-	    ifstream.read( data, 0, readableSize );
-	    ifstream.close( );
-	} catch ( FileNotFoundException e ) {
+	pending = new HashMap<Integer, byte[]>( );
+	spilled = new HashMap<Integer, Long>( );
+	if ( !new File( "DISK" ).exists( ) )
 	    SysLib.cerr( "threadOS: DISK created\n" );
+	try {
+	    // a short file is extended with zeros by the mapping
+	    RandomAccessFile file = new RandomAccessFile( "DISK", "rw" );
+	    data = file.getChannel( ).map( FileChannel.MapMode.READ_WRITE, 0,
+					   ( long )diskSize * blockSize );
+	    file.close( );             // the mapping stays valid
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    data = ByteBuffer.allocate( diskSize * blockSize );
+	}
+	recover( );
+    }
+
+    // Replay the journal if it was committed before a crash, so DISK holds
+    // the image of the SYNC that wrote it; otherwise just drop it
+    private void recover( ) {
+	File file = new File( journalFile );
+	if ( !file.exists( ) )
+	    return;
+	try {
+	    byte[] log = new byte[ ( int )file.length( ) ];
+	    DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+	    in.readFully( log );
+	    in.close( );
+	    int records = committed( log );
+	    if ( records > 0 ) {
+		for ( int i = 0; i < records; i++ ) {
+		    int at = i * ( 4 + blockSize );
+		    pending.put( SysLib.bytes2int( log, at ),
+				 Arrays.copyOfRange( log, at + 4,
+						     at + 4 + blockSize ) );
+		}
+		SysLib.cerr( "threadOS: DISK recovered from its journal\n" );
+		if ( !checkpoint( ) )
+		    return;           // keep the journal for the next boot
+	    }
+	    file.delete( );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
+    // Number of block records in a complete journal, 0 if it was cut short
+    private int committed( byte[] log ) {
+	if ( log.length < commitSize )
+	    return 0;
+	int at = log.length - commitSize;
+	int records = SysLib.bytes2int( log, at + 4 );
+	if ( SysLib.bytes2int( log, at ) != commitMagic || records < 0
+	     || ( long )records * ( 4 + blockSize ) != at )
+	    return 0;
+	CRC32 crc = new CRC32( );
+	crc.update( log, 0, at );
+	if ( ( int )crc.getValue( ) != SysLib.bytes2int( log, at + 8 ) )
+	    return 0;
+	for ( int i = 0; i < records; i++ ) {
+	    int blockId = SysLib.bytes2int( log, i * ( 4 + blockSize ) );
+	    if ( blockId < 0 || blockId >= diskSize )
+		return 0;
+	}
+	return records;
+    }
 
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+    // Append a record of each of blocks, taken from pending, to the journal
+    // after the records already in it, opening the journal if need be.
+    // Nothing is forced to the host disk yet. Returns false if the journal
+    // could not be written; the next append then writes over what this one
+    // left behind.
+    private boolean append( Integer blocks[] ) {
+	byte[] records = new byte[ blocks.length * ( 4 + blockSize ) ];
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    int at = i * ( 4 + blockSize );
+	    SysLib.int2bytes( blocks[i], records, at );
+	    System.arraycopy( pending.get( blocks[i] ), 0, records, at + 4,
+			      blockSize );
+	}
+	try {
+	    if ( log == null ) {
+		log = new RandomAccessFile( journalFile, "rw" );
+		logLength = 0;
+		logCrc = new CRC32( );
+	    }
+	    log.seek( logLength );
+	    log.write( records );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
 	    return false;
 	}
+	logCrc.update( records, 0, records.length );
+	for ( int i = 0; i < blocks.length; i++ )
+	    spilled.put( blocks[i], logLength + i * ( 4 + blockSize ) + 4 );
+	logLength += records.length;
+	return true;
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
+    // Close the records in the journal with a commit record and wait until
+    // the journal is on the host disk
+    private boolean seal( ) {
+	byte[] commit = new byte[commitSize];
+	SysLib.int2bytes( commitMagic, commit, 0 );
+	SysLib.int2bytes( ( int )( logLength / ( 4 + blockSize ) ), commit, 4 );
+	SysLib.int2bytes( ( int )logCrc.getValue( ), commit, 8 );
+	try {
+	    log.seek( logLength );
+	    log.write( commit );
+	    log.setLength( logLength + commitSize );
+	    log.getFD( ).sync( );
 	    return true;
-	} else
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
 	    return false;
+	}
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    // Read the block whose data starts at offset in the journal into buffer
+    private void readLog( long offset, byte buffer[], int at )
+	throws IOException {
+	log.seek( offset );
+	log.readFully( buffer, at, blockSize );
+    }
 
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+    // Move the pending blocks to the journal, without a commit record, so
+    // they no longer take up memory. Reads find them there until the next
+    // SYNC commits them.
+    private boolean spill( ) {
+	Integer[] blocks = pending.keySet( ).toArray( new Integer[0] );
+	Arrays.sort( blocks );
+	if ( !append( blocks ) )
 	    return false;
-	}
+	pending.clear( );
+	return true;
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
+    // Copy the pending and spilled blocks into the image and persist only
+    // them: each run of adjacent blocks is forced, or written when nothing
+    // is mapped. The blocks stay where they are unless all of them reached
+    // the file.
+    private boolean checkpoint( ) {
+	TreeSet<Integer> all = new TreeSet<Integer>( pending.keySet( ) );
+	all.addAll( spilled.keySet( ) );
+	Integer[] blocks = all.toArray( new Integer[0] );
+	try {
+	    byte[] block = new byte[blockSize];
+	    for ( int i = 0; i < blocks.length; i++ ) {
+		byte[] latest = pending.get( blocks[i] );
+		if ( latest == null ) {
+		    readLog( spilled.get( blocks[i] ), block, 0 );
+		    latest = block;
+		}
+		data.put( blocks[i] * blockSize, latest, 0, blockSize );
+	    }
+	    RandomAccessFile file = ( data instanceof MappedByteBuffer ) ?
+		null : new RandomAccessFile( "DISK", "rw" );
+	    for ( int i = 0, run; i < blocks.length; i += run ) {
+		run = 1;
+		while ( i + run < blocks.length
+			&& blocks[i + run] == blocks[i] + run )
+		    run++;
+		if ( file == null )
+		    ( ( MappedByteBuffer )data ).force( blocks[i] * blockSize,
+							run * blockSize );
+		else {
+		    file.seek( ( long )blocks[i] * blockSize );
+		    file.write( data.array( ), blocks[i] * blockSize,
+				run * blockSize );
+		}
+	    }
+	    if ( file != null )
+		file.close( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
 	    return false;
+	}
+	pending.clear( );
+	spilled.clear( );
+	return true;
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
+    // Journal the pending blocks after any spilled ones and commit them all,
+    // then write them into DISK and drop the journal. Returns false if a
+    // step failed: the blocks stay pending or spilled for the next commit,
+    // and a committed journal is left for recover( ).
+    private boolean commit( ) {
+	if ( pending.isEmpty( ) && spilled.isEmpty( ) )
 	    return true;
-	} else
+	Integer[] blocks = pending.keySet( ).toArray( new Integer[0] );
+	Arrays.sort( blocks );
+	if ( !append( blocks ) || !seal( ) || !checkpoint( ) )
 	    return false;
+	try {
+	    log.close( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	log = null;
+	new File( journalFile ).delete( );
+	return true;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    // a request for a block the disk does not have: it fails at once and is
+    // never queued, so the caller sees an error rather than a full queue
+    private Request rejected( int command, int blockId ) {
+	Request request = new Request( command, blockId, null, 0 );
+	request.complete( false );
+	return request;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
-	    return false;
+    // queue a request unless the queue is full; null means try again later
+    private Request submit( int command, int blockId, byte buffer[],
+			    int offset ) {
+	if ( queue.size( ) >= maxRequests )
+	    return null;
+	Request request = new Request( command, blockId, buffer, offset );
+	queue.addElement( request );
+	notify( );
+	return request;
+    }
+
+    public synchronized Request read( int blockId, byte buffer[] ) {
+
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return rejected( READ, blockId );
+	}
+	return submit( READ, blockId, buffer, 0 );
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    public synchronized Request write( int blockId, byte buffer[] ) {
+
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+	    return rejected( WRITE, blockId );
+	}
+	return submit( WRITE, blockId, buffer, 0 );
+    }
+
+    // read several blocks as one batch: blockIds[i] lands at
+    // buffer[i * blockSize]. Either all blocks are queued or none is; a
+    // wrong blockId gives a single failed request.
+    public synchronized Request[] readv( int blockIds[], byte buffer[] ) {
+
+	for ( int i = 0; i < blockIds.length; i++ )
+	    if ( blockIds[i] < 0 || blockIds[i] >= diskSize ) {
+		SysLib.cerr( "threadOS: a wrong blockId for readv\n" );
+		return new Request[] { rejected( READ, blockIds[i] ) };
+	    }
+
+	if ( queue.size( ) > 0 && queue.size( ) + blockIds.length > maxRequests )
+	    return null;
+	Request[] requests = new Request[blockIds.length];
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    requests[i] = new Request( READ, blockIds[i], buffer, i * blockSize );
+	    queue.addElement( requests[i] );
+	}
+	notify( );
+	return requests;
+    }
+
+    public synchronized Request sync( ) {
+	return submit( SYNC, currentBlockId, null, 0 );
+    }
+
+    // pick the next request to service according to the policy. A SYNC
+    // acts as a barrier: nothing queued after it is serviced before it.
+    private synchronized Request waitCommand( ) {
+	while ( queue.isEmpty( ) ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+
+	int candidates = queue.size( );
+	for ( int i = 0; i < queue.size( ); i++ )
+	    if ( queue.elementAt( i ).command == SYNC ) {
+		candidates = ( i == 0 ) ? 1 : i;
+		break;
+	    }
+
+	int next = 0;
+	switch ( policy ) {
+	case SSTF:
+	    next = nearest( candidates, false, true );
+	    break;
+	case SCAN:
+	    next = nearest( candidates, true, goingUp );
+	    if ( next == -1 ) {
+		goingUp = !goingUp;
+		next = nearest( candidates, true, goingUp );
+	    }
+	    break;
+	case CLOOK:
+	    next = nearest( candidates, true, true );
+	    if ( next == -1 )             // wrap around to the lowest block
+		next = nearest( candidates, false, true, 0 );
+	    break;
+	}
+	return queue.remove( next );
+    }
+
+    private int nearest( int candidates, boolean oneWay, boolean up ) {
+	return nearest( candidates, oneWay, up, currentBlockId );
+    }
+
+    // index of the candidate closest to from, optionally only those at or
+    // above (up) or at or below (!up) it; -1 if there is none. Ties go to
+    // the older request, so requests for one block keep their order.
+    private int nearest( int candidates, boolean oneWay, boolean up,
+			 int from ) {
+	int best = -1;
+	int bestDistance = 0;
+	for ( int i = 0; i < candidates; i++ ) {
+	    int distance = queue.elementAt( i ).blockId - from;
+	    if ( oneWay && ( up ? distance < 0 : distance > 0 ) )
+		continue;
+	    distance = Math.abs( distance );
+	    if ( best == -1 || distance < bestDistance ) {
+		best = i;
+		bestDistance = distance;
+	    }
+	}
+	return best;
     }
 
     private void seek( ) {
@@ -123,43 +452,57 @@ public class Disk extends Thread {
 	currentBlockId = targetBlockId;
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
+    private void finishCommand( Request request, boolean ok ) {
+	request.complete( ok );
 	SysLib.disk( ); // a disk interrupt
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
+	    Request request = waitCommand( );
+	    targetBlockId = request.blockId;
 	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
+	    // System.out.println( "Disk: command = " + request.command );
+	    boolean ok = true;
+	    switch( request.command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		byte[] block = pending.get( targetBlockId );
+		Long logged = spilled.get( targetBlockId );
+		if ( block != null )
+		    System.arraycopy( block, 0, request.buffer, 
+				      request.offset, blockSize );
+		else if ( logged != null ) {
+		    try {
+			readLog( logged, request.buffer, request.offset );
+		    } catch ( IOException e ) {
+			SysLib.cerr( e.toString( ) + "\n" );
+			ok = false;
+		    }
+		} else
+		    data.get( targetBlockId * blockSize, 
+			      request.buffer, request.offset, blockSize );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		block = pending.get( targetBlockId );
+		if ( block == null ) {
+		    block = new byte[blockSize];
+		    pending.put( targetBlockId, block );
+		}
+		System.arraycopy( request.buffer, request.offset, 
+				  block, 0, blockSize );
+		// written to faster than it is synced: spill now, and after a
+		// failure wait for maxPending more blocks before trying again
+		if ( pending.size( ) >= nextSpill )
+		    nextSpill = ( spill( ) ? 0 : pending.size( ) ) + maxPending;
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
-		}
+		ok = commit( );              // else keep them for the next SYNC
+		nextSpill = pending.size( ) + maxPending;
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    finishCommand( request, ok );
 	}
     }
 }
@@ -22,27 +22,41 @@
  
  */
 
+import java.nio.ByteBuffer;
+import java.util.*;
+
 public class FileSystem {
     private SuperBlock superblock;
     private Directory directory;
     private FileTable filetable;
     private final static boolean SUCCESS = true;
     private final static boolean FAILURE = false;
+    private final static int blockSize = 512;
+    private final static int preallocBlocks = 8;   // smallest run reserved for a file
+    private final static int maxPaths = 64;        // directory paths cached
+    private final static int minReadAhead = 2;     // first read-ahead window
+    private final static int maxReadAhead = 16;    // largest read-ahead window
+    private LinkedHashMap<String, Short> pathCache; // directory path -> iNumber
 
     public FileSystem(int diskBlocks) {
         // create superblock, and format disk with 64 inodes in default
         superblock = new SuperBlock(diskBlocks);
 
-        // create directory, and register "/" in directory entry 0
-        directory = new Directory(superblock.inodeBlocks);
+        // create directory with an entry for every inode, and register "/"
+        // in directory entry 0
+        directory = new Directory(superblock.inodeCount());
 
         // file table is created, and store directory in the file table
-        filetable = new FileTable(directory);
+        filetable = new FileTable(directory, superblock);
+        pathCache = newPathCache();
 
-        // directory reconstruction
+        // directory reconstruction: an image laid out for this many inodes is
+        // paged in as lookups need it, any other one is read whole
         FileTableEntry dirEnt = open("/", "r");
         int dirSize = fsize(dirEnt);
-        if (dirSize > 0) {
+        if (dirSize > 0 && dirSize == directory.imageSize()) {
+            directory.page(this::readRoot);
+        } else if (dirSize > 0) {
             byte[] dirData = new byte[dirSize];
             read(dirEnt, dirData);
             directory.bytes2directory(dirData);
@@ -50,25 +64,65 @@ public class FileSystem {
         close(dirEnt);
     }
 
+    // reads part of the directory image for a paged Directory. It may be
+    // called under the file system lock, so the root is held without its
+    // inode lock: the parts paged in are never the ones sync rewrites
+    private void readRoot(int offset, byte[] buffer) {
+        FileTableEntry dirEnt = filetable.fhold((short) 0);
+        pread(dirEnt, buffer, offset);
+        close(dirEnt);
+    }
+
     /**
     Sync Method
     
     The Sync Method syncs the file system back to the physical disk. The sync method will write
-    the directory information to the disk in byte form in the root directory. The method will
-    also ensure that the superblock is synced.
+    the directory information to the disk in byte form in the root directory. Only the blocks of
+    the root directory holding entries changed since the last sync are rewritten in place; the
+    whole image is written when the file does not have the size of the image yet. The method will
+    also ensure that the in-memory inodes and the superblock are synced, and write back every
+    dirty block held in the block cache.
     */
     public void sync() {
-        //open root directory with write access
-        FileTableEntry openRoot = open("/", "w");
+        //render changed directory blocks before root is open for writing,
+        //as a paged directory reads root to render them
+        int imageSize = directory.imageSize();
+        int[] blocks = directory.dirtyBlocks(blockSize);
+        FileTableEntry openRoot = open("/", "r");
+        boolean whole = fsize(openRoot) != imageSize;
+        close(openRoot);
+        byte[][] data;
+        if (whole) {
+            data = new byte[][] { directory.directory2bytes() };
+        } else {
+            data = new byte[blocks.length][];
+            for (int i = 0; i < blocks.length; i++) {
+                int offset = blocks[i] * blockSize;
+                data[i] = directory.directory2bytes(offset,
+                    Math.min(blockSize, imageSize - offset));
+            }
+        }
+
+        //write them to root, keeping its other blocks unless it is rewritten
+        openRoot = open("/", whole ? "w" : "w+");
+        if (openRoot != null) {
+            for (int i = 0; i < data.length; i++) {
+                if (!whole) seek(openRoot, blocks[i] * blockSize, SEEK_SET);
+                write(openRoot, data[i]);
+            }
 
-        //write directory to root
-        write(openRoot, directory.directory2bytes());
+            //close root directory
+            close(openRoot);
+        }
 
-        //close root directory
-        close(openRoot);
+        //write back inodes modified in the inode table
+        filetable.sync();
 
         //sync superblock
         superblock.sync();
+
+        //write back dirty blocks from the cache
+        SysLib.csync();
     }
 
     /**
@@ -79,20 +133,35 @@ public class FileSystem {
     formatted all contents are lost. The argument stipulates the number of files (inodes) to be created
     by the superblock.
     */
-    public boolean format(int files) {
+    public synchronized boolean format(int files) {
         //call format on superblock for arg number of files
         superblock.format(files);
 
         // create directory, and register "/" in directory entry 0
-        directory = new Directory(superblock.inodeBlocks);
+        directory = new Directory(superblock.inodeCount());
 
         // file table is created, and store directory in the file table
-        filetable = new FileTable(directory);
+        filetable = new FileTable(directory, superblock);
+        pathCache = newPathCache();
+
+        //push the fresh superblock out of the cache
+        SysLib.csync();
 
         //return true on completion
         return true;
     }
 
+    /**
+    writeBehind
+
+    Moves the inodes changed since they were last written into the block
+    cache. Called by the Flusher thread before it writes the dirty blocks
+    of the cache to disk; format cannot run at the same time.
+    */
+    public synchronized void writeBehind() {
+        filetable.sync();
+    }
+
     /**
     open
 
@@ -100,16 +169,37 @@ public class FileSystem {
     String passed into it. In addition to the String object, it has passed 
     another String object to represent the mode that the filename object shall
     have once created. The function starts out by creating a new FileTableEntry
-    object using filetable's falloc() function. Once that gets created, 
-    it checks to see if the mode that was passed in is a "w" for write. If it 
-    is, it deletes all blocks and starts writing from scratch. After this check 
-    occurs, the new FileTableEntry object is returned to the calling function.
+    object using filetable's falloc() function, or by resolving the path when
+    the file lives below the root. Directories cannot be opened as files. Once
+    that gets created, it checks to see if the mode that was passed in is a 
+    "w" for write. If it is, it deletes all blocks and starts writing from 
+    scratch. After this check occurs, the new FileTableEntry object is 
+    returned to the calling function.
    */
     FileTableEntry open(String filename, String mode) {
-        FileTableEntry newEntry = filetable.falloc(filename, mode);
+        FileTableEntry newEntry;
+        if (filename.indexOf('/') < 0 || filename.equals("/")) {
+            newEntry = filetable.falloc(filename, mode);
+        } else {
+            String[] path = split(filename);
+            if (path.length == 0)
+                newEntry = filetable.falloc("/", mode);
+            else if (path.length == 1)
+                newEntry = filetable.falloc(path[0], mode);
+            else
+                newEntry = openPath(path, mode);
+        }
+        if (newEntry == null)
+            return null;
+        if (newEntry.inode.type == Inode.DIRECTORY) {
+            close(newEntry);
+            return null;
+        }
         if (mode == "w") {                                //Is it writing mode?
-            if (!deallocAllBlocks(newEntry))
-                return null; //Delete all blocks first
+            if (!deallocAllBlocks(newEntry)) {            //Delete all blocks first
+                close(newEntry);                          //unlock it again
+                return null;
+            }
         }
         return newEntry;                                //return new FT entry
     }
@@ -128,8 +218,13 @@ public class FileSystem {
             // If there are no more users using this file table entry,
             // free the file entry in the file table
             if (ftEnt.count == 0) {
-                return filetable.ffree(ftEnt);
-
+                boolean freed = filetable.ffree(ftEnt);
+                // nobody has the file open anymore, give back its reservation
+                synchronized (ftEnt.inode) {
+                    if (ftEnt.inode.count == 0)
+                        releasePrealloc(ftEnt.inode);
+                }
+                return freed;
             }
             return true;
         }
@@ -153,59 +248,150 @@ public class FileSystem {
     /**
     read: 
     
-    Read operation runs atomically. Checks target block to make sure it is
-    valid to read from. Else break. Then reads block and calulates the
-    buffer based on data size. The amount of data read during each loop is
-    determined by the buffer size, and it gets read from the ftEnt.
+    Reads from the seek pointer. The range is claimed by advancing the seek
+    pointer before any data is fetched, so threads sharing ftEnt each get
+    their own part of the file and do the I/O in parallel. If less could be
+    read than claimed, the seek pointer is moved back unless another read
+    has moved it since. Once the data is in, the blocks that follow it are
+    read ahead into the cache when the file is being read sequentially.
     */
     int read(FileTableEntry ftEnt, byte[] buffer) {
+        return read(ftEnt, ByteBuffer.wrap(buffer));
+    }
+
+    /**
+    read (ByteBuffer):
+
+    Same as above, reading into buffer from its position up to its limit.
+    The cache copies each byte straight from its frame into buffer, and the
+    position is moved past the bytes read.
+    */
+    int read(FileTableEntry ftEnt, ByteBuffer buffer) {
         if ((ftEnt.mode == "w") || (ftEnt.mode == "a"))
             return -1;
 
-        int size = buffer.length;               //total size of data to read
-        int readBuffer = 0;                     //used to track data read
-        int readError = -1;                     //checks for error on read
-        int blockSize = 512;
-        int iterationSize = 0;                  //tracks how much is left to read
+        int offset, size;
+        synchronized (ftEnt) {
+            // check how much file left
+            offset = ftEnt.seekPtr;
+            size = Math.min(buffer.remaining(), fsize(ftEnt) - offset);
+            if (size <= 0)
+                return 0;
+            ftEnt.seekPtr += size;
+        }
+
+        int done = pread(ftEnt, buffer, offset, size);
+        if (done < size) {
+            synchronized (ftEnt) {
+                if (ftEnt.seekPtr == offset + size)
+                    ftEnt.seekPtr = offset + Math.max(done, 0);
+            }
+        }
+
+        int[] ahead = readAhead(ftEnt, offset, Math.max(done, 0));
+        if (ahead != null)
+            SysLib.cprefetch(ahead);
+        return done;
+    }
+
+    /**
+    readAhead
 
+    Tracks how ftEnt is read and returns the blocks to prefetch after a read
+    of size bytes at offset, or null if there are none. A read starting where
+    the previous one ended doubles the window, from minReadAhead up to
+    maxReadAhead blocks; any other read closes it. Only blocks of the window
+    that were not read ahead before are returned.
+    */
+    private int[] readAhead(FileTableEntry ftEnt, int offset, int size) {
         synchronized (ftEnt) {
-            // loop to read chunks of data
-            while ((ftEnt.seekPtr < fsize(ftEnt) && (size > 0))) {
-                // prep to read data from block if valid
-                int target = ftEnt.inode.findTargetBlock(ftEnt.seekPtr);
-                if (target == readError) {
-                    break;
-                }
-                // read block of data
-                byte[] data = new byte[blockSize];
-                SysLib.rawread(target, data);
-
-                // set pointer to read block data
-                int dataOffset = ftEnt.seekPtr % blockSize;
-                // get what is left in block
-                int blockLeft = blockSize - dataOffset;
-                // check how much file left
-                int fileLeft = fsize(ftEnt) - ftEnt.seekPtr;
-
-                if (blockLeft < fileLeft)
-                    iterationSize = blockLeft;
-                else
-                    iterationSize = fileLeft;
-
-                if (iterationSize > size)
-                    iterationSize = size;
-
-                //copy over data read to buffer
-                System.arraycopy(data, dataOffset, buffer, readBuffer,
-                        iterationSize);
-
-                //update variables for next iteration
-                ftEnt.seekPtr += iterationSize;
-                readBuffer += iterationSize;
-                size -= iterationSize;
+            if (offset != ftEnt.readEnd) {
+                ftEnt.aheadWindow = 0;
+                ftEnt.aheadEnd = 0;
+            } else if (ftEnt.aheadWindow == 0) {
+                ftEnt.aheadWindow = minReadAhead;
+            } else {
+                ftEnt.aheadWindow = Math.min(ftEnt.aheadWindow * 2, maxReadAhead);
+            }
+            ftEnt.readEnd = offset + size;
+            if (ftEnt.aheadWindow == 0 || ftEnt.inode.inline != null)
+                return null;
+
+            // the window starts at the first block this read did not touch
+            int next = (offset + size + blockSize - 1) / blockSize;
+            int first = Math.max(next, ftEnt.aheadEnd);
+            int last = Math.min(next + ftEnt.aheadWindow,
+                    (fsize(ftEnt) + blockSize - 1) / blockSize);
+            if (first >= last)
+                return null;
+            int[] targets = new int[last - first];
+            int found = ftEnt.inode.findTargetBlocks(first * blockSize, targets);
+            ftEnt.aheadEnd = first + found;
+            return (found > 0) ? Arrays.copyOf(targets, found) : null;
+        }
+    }
+
+    /**
+    pread:
+
+    Reads into buffer from the given file offset, leaving the seek pointer
+    alone. Returns the number of bytes read, 0 at the end of the file, or -1
+    if the file is not open for reading or the offset is negative.
+    */
+    int pread(FileTableEntry ftEnt, byte[] buffer, int offset) {
+        if ((ftEnt.mode == "w") || (ftEnt.mode == "a") || offset < 0)
+            return -1;
+        return pread(ftEnt, ByteBuffer.wrap(buffer), offset, buffer.length);
+    }
+
+    /**
+    pread (bounded):
+
+    Reads at most size bytes from offset. The request is clipped to what is
+    left of the file, then every block covering that range is looked up in
+    the inode at once. Only this lookup holds ftEnt; the blocks are then
+    fetched with a single vectored read through the block cache while other
+    threads are free to read the same file, and copied from the cache into
+    buffer from its position. Reading stops early at a block that was never
+    allocated. A file kept inline is copied straight from its inode.
+    */
+    private int pread(FileTableEntry ftEnt, ByteBuffer buffer, int offset, int size) {
+        int[] targets;
+        synchronized (ftEnt) {
+            // check how much file left
+            int fileLeft = fsize(ftEnt) - offset;
+            if (size > fileLeft)
+                size = fileLeft;
+            if (size <= 0)
+                return 0;
+
+            // small files need no block at all
+            if (ftEnt.inode.inline != null) {
+                buffer.put(ftEnt.inode.inline, offset, size);
+                return size;
+            }
+
+            // resolve all target blocks of the range up front
+            int dataOffset = offset % blockSize;
+            targets = new int[(dataOffset + size + blockSize - 1) / blockSize];
+            int found = ftEnt.inode.findTargetBlocks(offset, targets);
+            if (found < targets.length) {
+                // only read up to the first invalid block
+                size = Math.min(size, found * blockSize - dataOffset);
+                if (size <= 0)
+                    return 0;
+                int[] valid = new int[found];
+                System.arraycopy(targets, 0, valid, 0, found);
+                targets = valid;
             }
-            return readBuffer;
         }
+
+        // read all blocks in one request, straight into size bytes of buffer
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + size);
+        SysLib.creadv(targets, offset % blockSize, buffer);
+        buffer.limit(limit);
+        return size;
     }
 
     /**
@@ -214,16 +400,33 @@ public class FileSystem {
     Writes the contents of buffer to the file indicated by ftEnt, starting at the position 
     indicated by the seek pointer. Increments the seek pointer by the number of bytes to 
     have been written. The return value is the number of bytes that have been written, or a 
-    negative value upon an error.
+    negative value upon an error. A file kept inline stays in its inode while it fits, and is
+    moved to a data block by the first write that makes it larger than Inode.inlineSize.
+    The inode is only marked dirty; it reaches the disk through the Flusher or on sync.
 
     @param ftEnt a FileTableEntry to be written to
     @param buffer a byte array that will be written to ftEnt
     @return int value of number of bytes that have been written. -1 if error
    */
     int write(FileTableEntry ftEnt, byte[] buffer) {
+        return write(ftEnt, ByteBuffer.wrap(buffer));
+    }
+
+    /**
+    write (ByteBuffer)
+
+    Same as above, writing buffer from its position up to its limit and
+    moving the position past the bytes written. Each part of a block goes
+    straight from buffer into the block cache, which merges it with the rest
+    of the block, so no block-sized copy is made here.
+
+    @param ftEnt a FileTableEntry to be written to
+    @param buffer a heap or direct buffer that will be written to ftEnt
+    @return int value of number of bytes that have been written. -1 if error
+   */
+    int write(FileTableEntry ftEnt, ByteBuffer buffer) {
         int bytesWritten = 0; // bytes that have been written
-        int bufferSize = buffer.length; // remaining size of buffer
-        int blockSize = 512;
+        int bufferSize = buffer.remaining(); // remaining size of buffer
 
         // error checking
         if (ftEnt == null || ftEnt.mode == "r") {
@@ -231,14 +434,46 @@ public class FileSystem {
         }
 
         synchronized (ftEnt) {
+            Inode inode = ftEnt.inode;
+            if (inode.inline != null) {
+                byte[] inlined;
+                synchronized (inode) {                      // the Flusher copies it
+                    if (ftEnt.seekPtr + bufferSize <= Inode.inlineSize) {
+                        buffer.get(inode.inline, ftEnt.seekPtr, bufferSize);
+                        ftEnt.seekPtr += bufferSize;
+                        if (ftEnt.seekPtr > inode.length)
+                            inode.length = ftEnt.seekPtr;
+                        inode.dirty = true;                 // written behind
+                        return bufferSize;
+                    }
+
+                    // too large to stay inline, move what is there to a block
+                    inlined = Arrays.copyOf(inode.inline, inode.length);
+                    inode.inline = null;
+                }
+                if (inlined.length > 0) {
+                    int seekPtr = ftEnt.seekPtr;
+                    ftEnt.seekPtr = 0;
+                    if (write(ftEnt, inlined) != inlined.length)
+                        return -1;
+                    ftEnt.seekPtr = seekPtr;
+                }
+            }
+
             while (bufferSize > 0) {
                 // location of block to read from
                 int loc = ftEnt.inode.findTargetBlock(ftEnt.seekPtr);
+                boolean newBlock = (loc == -1);             // nothing on it yet
 
                 // if current block is null
                 if (loc == -1) {
-                    // find new free block to write to
-                    short newLoc = (short) superblock.getFreeBlock();
+                    // find new free block to write to, next to the previous one
+                    int blocksNeeded = (ftEnt.seekPtr % blockSize + bufferSize
+                            + blockSize - 1) / blockSize;
+                    short newLoc = (short) allocBlock(ftEnt, blocksNeeded);
+                    if (newLoc < 0) {
+                        return -1;
+                    }
 
                     //gets index block number and test pointers
                     int testPtr = ftEnt.inode.getIndexBlockNumber(ftEnt.seekPtr, newLoc);
@@ -249,90 +484,152 @@ public class FileSystem {
                         
                         //Indirect pointer is != -1
                         if (!ftEnt.inode.setIndexBlock(freeBlock)) {
+                            if (freeBlock >= 0) {
+                                superblock.returnBlock(freeBlock);
+                            }
+                            superblock.returnBlock(newLoc); //not in the file
                             return -1;
                         }
 
                         //Has error on block pointer
                         if (ftEnt.inode.getIndexBlockNumber(ftEnt.seekPtr, newLoc) != 0) {
+                            superblock.returnBlock(newLoc);
                             return -1;
                         }                        
                     //Error on write to used or unused block
                     } else if (testPtr == -2 || testPtr == -1){
+                        superblock.returnBlock(newLoc);
                         return -1;
                     }
                     loc = newLoc;
                 }
                 
-                byte[] tempBuffer = new byte[blockSize];    // create new byte array
-                SysLib.rawread(loc, tempBuffer);            // read block into memory
-
                 int tempPtr = ftEnt.seekPtr % blockSize;    // walks through file
-                int diff = blockSize - tempPtr;             // size difference between blocks
-
-                // append to end if diff is bigger than size of buffer
-                if (diff > bufferSize) {
-                  System.arraycopy(buffer, bytesWritten, tempBuffer, tempPtr, bufferSize);
-                  SysLib.rawwrite(loc, tempBuffer);         // write block to memory
-
-                  ftEnt.seekPtr += bufferSize;              // increment seekptr
-                  bytesWritten += bufferSize;               // increment bytes written
-                  bufferSize = 0;                           // update buff size
 
-                // copy remaining block to array
-                } else {                                   
-                   System.arraycopy(buffer, bytesWritten, tempBuffer, tempPtr, diff);
-                   SysLib.rawwrite(loc, tempBuffer);        // write block to memory
-
-                   ftEnt.seekPtr += diff;                   // increment seekptr
-                   bytesWritten += diff;                    // increment bytes written
-                   bufferSize -= diff;                      // decrement remaining buff size
+                // the cache takes the part of buffer that falls in this block
+                // and reads the rest of it first only if the block already
+                // holds data that is not cached
+                int written = SysLib.cwrite(loc, tempPtr, buffer, newBlock);
+                if (written <= 0) {
+                    return -1;
                 }
 
+                ftEnt.seekPtr += written;                   // increment seekptr
+                bytesWritten += written;                    // increment bytes written
+                bufferSize -= written;                      // decrement remaining buff size
             }
             // update inode length if seekPtr is bigger
             if (ftEnt.seekPtr > ftEnt.inode.length) {
                 ftEnt.inode.length = ftEnt.seekPtr;
             }
 
-            ftEnt.inode.toDisk(ftEnt.iNumber);              // save inode to Disk
+            ftEnt.inode.dirty = true;                       // written behind
             return bytesWritten;
         }
     }
 
+    /**
+    allocBlock
+
+    Returns a free block for the file block at the seek pointer. Blocks are
+    taken in order from a run reserved for the inode; once it is used up a
+    new run is reserved right after the file's previous block, sized by the
+    number of blocks the current write still needs (at least preallocBlocks),
+    so sequential reads of the file stay on the same or nearby tracks. The
+    inode's lock guards its run; the superblock locks its own bitmap, so
+    files written at the same time never reserve the same blocks.
+
+    @param ftEnt the FileTableEntry being written
+    @param blocksNeeded blocks the current write still has to allocate
+    @return block number, or -1 if the disk is full
+    */
+    private int allocBlock(FileTableEntry ftEnt, int blocksNeeded) {
+        Inode inode = ftEnt.inode;
+        synchronized (inode) {
+            if (inode.preallocLeft == 0) {
+                int goal = 0;
+                if (ftEnt.seekPtr >= blockSize) {
+                    goal = inode.findTargetBlock(ftEnt.seekPtr - blockSize) + 1;
+                }
+                // settle for a shorter run, down to a single block
+                int want = Math.max(blocksNeeded, preallocBlocks);
+                int start = -1;
+                while (want > 0 && (start = superblock.reserveRun(goal, want)) == -1) {
+                    want /= 2;
+                }
+                if (start == -1) {
+                    return -1;
+                }
+                inode.preallocNext = start;
+                inode.preallocLeft = want;
+            }
+            int block = inode.preallocNext++;
+            inode.preallocLeft--;
+            superblock.claimBlock(block);
+            return block;
+        }
+    }
+
+    /**
+    releasePrealloc
+
+    Returns the reserved blocks a file did not use to the free space.
+    */
+    private void releasePrealloc(Inode inode) {
+        while (inode.preallocLeft > 0) {
+            superblock.returnBlock(inode.preallocNext++);
+            inode.preallocLeft--;
+        }
+    }
+
     /**
     deallocAllBlocks: 
     
-    Checks if inodes blocks are valid, else error. Then runs through all
-    the direct pointer blocks and calls superblock to return if valid.
-    Then handles indirect ptr from indode and calls returnBlock().
-    Finally writes back inodes to disk. 
+    The caller has the file to itself: it holds the inode's write lock, or
+    it is a directory file used under the file system lock. The inode count
+    is no guide, as it includes users still waiting for the lock. Runs
+    through all the blocks of each extent in the inode and calls superblock
+    to return them. Then handles the extents listed in the index blocks the
+    same way and returns the index blocks themselves. The file is left
+    empty, all in one step under the inode's monitor so the Flusher never
+    copies it half emptied. Finally writes back inodes to disk.
     */
     private boolean deallocAllBlocks(FileTableEntry ftEnt) {
         short notValid = -1; //can't read
-        // return if inode is null
-        if (ftEnt.inode.count != 1) {
-            SysLib.cerr("Null pointer - could not deallocAllBlocks.\n");
-            return false;
-        }
+        Inode inode = ftEnt.inode;
 
-        //handle direct pointer blocks
-        for (short blockId = 0; blockId < ftEnt.inode.directSize; blockId++) {
-            if (ftEnt.inode.direct[blockId] != notValid) {
-                superblock.returnBlock(blockId);
-                ftEnt.inode.direct[blockId] = notValid;
+        synchronized (inode) {
+            //handle extents kept in the inode
+            for (int i = 0; i < Inode.extentSize; i++) {
+                for (int j = 0; j < inode.extLength[i]; j++) {
+                    superblock.returnBlock(inode.extStart[i] + j);
+                }
+                inode.extStart[i] = notValid;
+                inode.extLength[i] = 0;
             }
-        }
 
-        //get any data from indirect ptr
-        byte[] data = ftEnt.inode.freeIndirectBlock();
-        //handle block from direct pointer if != null
-        if (data != null) {
-            short blockId;
-            while ((blockId = SysLib.bytes2short(data, 0)) != notValid) {
-                superblock.returnBlock(blockId);
+            //get any extents from the index blocks
+            short[] indexBlocks = inode.indexBlocks();
+            short[] data = inode.freeIndirectBlock();
+            //handle blocks of each extent if != null
+            if (data != null) {
+                for (int i = 0; i < data.length; i += 2) {
+                    short start = data[i];
+                    short length = data[i + 1];
+                    for (int j = 0; j < length; j++) {
+                        superblock.returnBlock(start + j);
+                    }
+                }
+                for (int i = 0; i < indexBlocks.length; i++) {
+                    superblock.returnBlock(indexBlocks[i]);
+                }
             }
+            releasePrealloc(inode);
+            inode.length = 0;
+            inode.inline = new byte[Inode.inlineSize]; //empty, so inline
         }
-        ftEnt.inode.toDisk(ftEnt.iNumber);//write back inodes to disk
+        // not under the monitor: toDisk takes the inode block lock first
+        inode.toDisk(ftEnt.iNumber);//write back inodes to disk
         return true;
     }
 
@@ -350,15 +647,236 @@ public class FileSystem {
     indicating that it is still open elsewhere.
    */
     boolean delete(String filename) {
+        String[] path = split(filename);
+        if (path.length == 0)                           //"/" stays
+            return FAILURE;
+        short iNumber = lookup(path);
+        if (iNumber >= 0 && filetable.isDirectory(iNumber))
+            return removeDirectory(path);               //only if empty
         FileTableEntry tcb = open(filename, "w");       //Grab the TCB (iNode)
-        if (directory.ifree(tcb.iNumber) && close(tcb)) { //try to free and
-            // delete
+        if (tcb == null)                                 //Directory is full
+            return FAILURE;
+        boolean unlinked = unlink(path, tcb.iNumber);   //try to free
+        if (close(tcb) && unlinked) {                   //and delete
             return SUCCESS;                              //Delete was completed
         } else {
             return FAILURE;                              //Was not last open
         }
     }
 
+    /**
+    mkdir
+
+    Creates an empty directory. Every directory but the root is a file of
+    hashed buckets (see DirectoryFile), entered in the directory above it.
+    @param filename the path of the new directory
+    @return true if the directory was created
+    */
+    synchronized boolean mkdir(String filename) {
+        String[] path = split(filename);
+        if (path.length == 0)
+            return FAILURE;
+        FileTableEntry dirEnt = create(path, "w+", Inode.DIRECTORY);
+        if (dirEnt == null)
+            return FAILURE;
+        return close(dirEnt);
+    }
+
+    // splits a path into its names; empty names (as in "/a//b") are skipped
+    private static String[] split(String filename) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (String name : filename.split("/"))
+            if (name.length() > 0)
+                names.add(name);
+        return names.toArray(new String[names.size()]);
+    }
+
+    // the first n names of path, as the key of the path cache
+    private static String join(String[] path, int n) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            key.append('/').append(path[i]);
+        return key.toString();
+    }
+
+    private static LinkedHashMap<String, Short> newPathCache() {
+        return new LinkedHashMap<String, Short>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Short> e) {
+                return size() > maxPaths;
+            }
+        };
+    }
+
+    /**
+    openPath
+
+    Opens a file below the root. The path is resolved, and the inode held
+    in the inode table, under the file system lock; the inode is then locked
+    without it, since that may wait for another user of the file. If the
+    name was removed meanwhile, or the iNumber already belongs to a new
+    file, the lookup starts over. No check needs the file system lock again,
+    so nothing holding it ever waits for an inode lock taken here. A missing
+    file is created unless mode is "r".
+    */
+    private FileTableEntry openPath(String[] path, String mode) {
+        while (true) {
+            FileTableEntry held = hold(path);
+            if (held == null) {
+                if (mode.equals("r"))
+                    return null;
+                FileTableEntry created = create(path, mode, Inode.FILE);
+                if (created != null || lookup(path) < 0)
+                    return created;
+                continue;                               //created meanwhile
+            }
+            FileTableEntry newEntry = filetable.falloc(held.iNumber, mode);
+            boolean same = newEntry.inode == held.inode && !held.inode.unlinked;
+            close(held);
+            if (same)
+                return newEntry;
+            close(newEntry);
+        }
+    }
+
+    // looks up path and holds its inode in the table, or returns null
+    private synchronized FileTableEntry hold(String[] path) {
+        short iNumber = lookup(path);
+        return (iNumber < 0) ? null : filetable.fhold(iNumber);
+    }
+
+    /**
+    lookup
+
+    @param path the names leading to a file or directory
+    @return its inode number, or -1 if some name along the path is missing
+    */
+    private synchronized short lookup(String[] path) {
+        if (path.length == 1)
+            return directory.namei(path[0]);
+        short parent = lookupDir(path, path.length - 1);
+        if (parent < 0)
+            return -1;
+        return lookupIn(parent, path[path.length - 1]);
+    }
+
+    /**
+    lookupDir
+
+    Resolves the directory named by the first n names of path. Every
+    directory met on the way is remembered in the path cache, so resolving
+    other paths through it starts from there instead of the root.
+    @return the directory's inode number, or -1 if it does not exist
+    */
+    private synchronized short lookupDir(String[] path, int n) {
+        Short cached = pathCache.get(join(path, n));
+        if (cached != null)
+            return cached;
+        short iNumber = -1;
+        for (int i = 1; i <= n; i++) {
+            String key = join(path, i);
+            cached = pathCache.get(key);
+            if (cached != null) {
+                iNumber = cached;
+                continue;
+            }
+            iNumber = (i == 1) ? directory.namei(path[0])
+                               : lookupIn(iNumber, path[i - 1]);
+            if (iNumber < 0 || !filetable.isDirectory(iNumber))
+                return -1;
+            pathCache.put(key, iNumber);
+        }
+        return iNumber;
+    }
+
+    // looks up one name in the directory file with inode number dir. Like
+    // every directory file access, this runs under the file system lock and
+    // does not take the inode lock
+    private short lookupIn(short dir, String name) {
+        FileTableEntry dirEnt = filetable.fhold(dir);
+        short iNumber = new DirectoryFile(this, dirEnt).lookup(name);
+        close(dirEnt);
+        return iNumber;
+    }
+
+    /**
+    create
+
+    Creates the last name of path as an empty file or directory, opened in
+    passed mode. An entry of the root is created under its own name; any
+    other is added to the directory file above it.
+    @return the new file table entry, or null if the parent is missing, the
+    name exists or there is no room
+    */
+    private synchronized FileTableEntry create(String[] path, String mode,
+                                               byte type) {
+        String name = path[path.length - 1];
+        short parent = 0;
+        if (path.length > 1) {
+            parent = lookupDir(path, path.length - 1);
+            if (parent < 0 || name.length() > DirectoryFile.maxChars
+                || lookupIn(parent, name) >= 0)
+                return null;
+        }
+        FileTableEntry newEntry =
+            filetable.fcreate(parent == 0 ? name : "/" + name, mode);
+        if (newEntry == null)
+            return null;
+        newEntry.inode.type = type;
+        if ((type == Inode.DIRECTORY && !DirectoryFile.init(this, newEntry))
+            || (parent != 0 && !link(parent, name, newEntry.iNumber))) {
+            deallocAllBlocks(newEntry);
+            directory.ifree(newEntry.iNumber);
+            close(newEntry);
+            return null;
+        }
+        return newEntry;
+    }
+
+    // adds name to the directory file with inode number dir
+    private boolean link(short dir, String name, short iNumber) {
+        FileTableEntry dirEnt = filetable.fhold(dir);
+        boolean linked = new DirectoryFile(this, dirEnt).insert(name, iNumber);
+        close(dirEnt);
+        return linked;
+    }
+
+    /**
+    unlink
+
+    Takes the last name of path out of its directory and gives the inode
+    number back to the root, provided the name still leads to iNumber.
+    */
+    private synchronized boolean unlink(String[] path, short iNumber) {
+        pathCache.remove(join(path, path.length));
+        if (path.length > 1) {
+            short parent = lookupDir(path, path.length - 1);
+            if (parent < 0)
+                return FAILURE;
+            FileTableEntry dirEnt = filetable.fhold(parent);
+            DirectoryFile dir = new DirectoryFile(this, dirEnt);
+            boolean removed = dir.lookup(path[path.length - 1]) == iNumber
+                && dir.remove(path[path.length - 1]) == iNumber;
+            close(dirEnt);
+            if (!removed)
+                return FAILURE;
+        }
+        filetable.funlink(iNumber);
+        return directory.ifree(iNumber);
+    }
+
+    // deletes the directory at path if it has no entries left
+    private synchronized boolean removeDirectory(String[] path) {
+        short iNumber = lookup(path);
+        if (iNumber < 0 || !filetable.isDirectory(iNumber))
+            return FAILURE;
+        FileTableEntry dirEnt = filetable.fhold(iNumber);
+        boolean empty = new DirectoryFile(this, dirEnt).size() == 0;
+        if (empty)
+            empty = deallocAllBlocks(dirEnt) && unlink(path, iNumber);
+        close(dirEnt);
+        return empty;
+    }
+
     // Start position of the updating file pointer
     private final int SEEK_SET = 0; // from the beginning of the file
     private final int SEEK_CUR = 1; // from the current position of the file pointer in the file
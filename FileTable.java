@@ -1,7 +1,12 @@
 /**
   FileTable Class
   Maintains the file structure table shared among user threads
-  
+
+  Open inodes are kept in a concurrent map, and each inode carries its own
+  read/write lock: "r" takes it shared, "w", "w+" and "a" exclusive. The
+  stamp is kept in the file table entry until the entry is freed. Opening
+  one file therefore never waits for, or wakes up, the users of another.
+
   @author Diane Kerstein
   @author Magda Grzmiel
   @file FileTable.java
@@ -9,147 +14,370 @@
   @date June 12, 2014
  */
 
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileTable {
-    private Vector<FileTableEntry> table;   // the actual entity of file table
+    private Set<FileTableEntry> table;      // the actual entity of file table
+    private ConcurrentHashMap<Short, Inode> inodes; // in-memory inode table
     private Directory dir;                  // the root directory
+    private SuperBlock superblock;          // adds inodes when dir is full
+    private final static int maxCached = 64;// unused inodes kept in memory
     public final static int UNUSED = 0;     // file does not exist
     public final static int USED = 1;       // file exists but is not R or W by anyone
     public final static int READ = 2;       // file is read by someone
     public final static int WRITE = 3;      // file is written by someone
 
     /**
-    Constructor 
-    
+    Constructor
+
     Instantiates file structure table and sets dir to passed
     Directory reference
     @param directory a reference to a root Directory
+    @param superblock the SuperBlock to ask for more inodes
     */
-    public FileTable(Directory directory) { 
+    public FileTable(Directory directory, SuperBlock superblock) {
         // instantiate a file (structure) table
-        table = new Vector<FileTableEntry>(); 
+        table = ConcurrentHashMap.newKeySet();
+        // instantiate the inode table shared by all file table entries
+        inodes = new ConcurrentHashMap<Short, Inode>();
         // receive a reference to the Director from the file system
-        dir = directory;           
+        dir = directory;
+        this.superblock = superblock;
+    }
+
+    /**
+    ialloc
+
+    Allocates an inode number for passed name from the root directory. When
+    every inode is taken, the superblock adds a chunk of inodes and the
+    directory grows to match before trying again. Callers hold the directory
+    lock, so a name is checked and allocated in one step.
+
+    @param name the name to record in the root directory
+    @return the inode number, or -1 if no inode could be added
+    */
+    private short ialloc(String name) {
+        short iNumber = dir.ialloc(name);
+        if (iNumber < 0 && superblock.growInodes()) {
+            dir.grow(superblock.inodeCount());
+            iNumber = dir.ialloc(name);
+        }
+        return iNumber;
+    }
+
+    /**
+    iget
+
+    Returns the single in-memory Inode for passed iNumber, reading it from
+    the disk only the first time it is requested. The count and flag kept on
+    disk describe a previous run, so they are reset when the inode is loaded.
+
+    @param iNumber the inode number to look up
+    @return the shared Inode for iNumber
+    */
+    private Inode iget(short iNumber) {
+        return inodes.computeIfAbsent(iNumber, n -> {
+            Inode inode = new Inode(n);
+            inode.count = 0;
+            inode.flag = USED;
+            return inode;
+        });
+    }
+
+    /**
+    evict
+
+    Drops inodes nobody has open once the table grows past maxCached. The
+    ones that were modified while in memory are written back first, a
+    block of inodes at a time, and an inode opened or changed again
+    meanwhile stays in the table.
+    */
+    private void evict() {
+        int excess = inodes.size() - maxCached;
+        if (excess <= 0)
+            return;
+        Map<Short, Inode> victims = new HashMap<Short, Inode>();
+        Map<Short, Inode> dirty = new HashMap<Short, Inode>();
+        for (Map.Entry<Short, Inode> e : inodes.entrySet()) {
+            if (victims.size() == excess)
+                break;
+            Inode inode = e.getValue();
+            synchronized (inode) {
+                if (inode.count != 0)
+                    continue;
+                victims.put(e.getKey(), inode);
+                if (inode.dirty)
+                    dirty.put(e.getKey(), inode);
+            }
+        }
+        Inode.toDisk(dirty);
+        for (Map.Entry<Short, Inode> e : victims.entrySet()) {
+            Inode inode = e.getValue();
+            synchronized (inode) {
+                if (inode.count == 0 && !inode.dirty)
+                    inodes.remove(e.getKey(), inode);
+            }
+        }
+    }
+
+    /**
+    sync
+
+    Writes back every dirty inode in the inode table to the disk, one write
+    per block of inodes. Called by FileSystem.sync; inodes stay cached
+    afterwards.
+    */
+    public void sync() {
+        Map<Short, Inode> dirty = new HashMap<Short, Inode>();
+        for (Map.Entry<Short, Inode> e : inodes.entrySet()) {
+            if (e.getValue().dirty)
+                dirty.put(e.getKey(), e.getValue());
+        }
+        Inode.toDisk(dirty);
+    }
+
+    /**
+    attach
+
+    Registers one more user of the in-memory inode for iNumber, and makes
+    sure it is still the one in the inode table (it may have been evicted or
+    replaced by a new file meanwhile).
+
+    @return the inode, or null if the caller has to look it up again
+    */
+    private Inode attach(short iNumber) {
+        Inode inode = iget(iNumber);
+        synchronized (inode) {
+            if (inodes.get(iNumber) != inode)
+                return null;
+            inode.count++;  // increse the number of users
+        }
+        return inode;
+    }
+
+    // gives up one user of inode, taken by attach
+    private void detach(Inode inode) {
+        synchronized (inode) {
+            inode.count--;
+        }
+    }
+
+    /**
+    lock
+
+    Locks inode for passed mode, waiting for the users that are in the way
+    of it: readers share the lock, everyone else needs it alone. Returns the
+    stamp that unlocks it again.
+    */
+    private long lock(Inode inode, String mode) {
+        long stamp;
+        if (mode.equals("r")) {
+            stamp = inode.lock.readLock();
+            inode.flag = READ;
+        } else {
+            stamp = inode.lock.writeLock();
+            inode.flag = WRITE;
+        }
+        return stamp;
+    }
+
+    // creates the file table entry of a locked inode
+    private FileTableEntry newEntry(Inode inode, short iNumber, String mode,
+                                    long stamp) {
+        FileTableEntry entry = new FileTableEntry(inode, iNumber, mode);
+        entry.stamp = stamp;
+        table.add(entry);
+        return entry;
     }
 
     /**
     falloc
-    
-    Allocates a new file table entry for passed filename, allocates and 
-    retrieves register for the corresponding inode, increments the inode count,
-    writes back inode to disk, and returns reference to this file table entry 
-    
-    @param filename a String representing the file name (for which a file 
+
+    Allocates a new file table entry for passed filename, allocates and
+    retrieves register for the corresponding inode from the inode table,
+    increments the inode count, and returns reference to this file table entry
+
+    An existing file is locked for the mode, which may wait for its other
+    users; once the lock is held the name is looked up again in case the file
+    was deleted or replaced meanwhile. A missing file is created unless mode
+    is "r".
+
+    @param filename a String representing the file name (for which a file
     table entry will be created)
     @param mode a String representing the file access mode
-    @return reference to allocated file table entry 
+    @return reference to allocated file table entry
     */
-    public synchronized FileTableEntry falloc(String filename, String mode) {
-        short iNumber = -1; // inode number
-        Inode inode = null; // holds inode 
-
+    public FileTableEntry falloc(String filename, String mode) {
         while (true) {
             // get the inumber form the inode for given file name
-            iNumber = (filename.equals("/") ? (short) 0 : dir.namei(filename));
+            short iNumber = (filename.equals("/") ? (short) 0 : dir.namei(filename));
 
             // if the inode for the given file exist
             if (iNumber >= 0) {
-                inode = new Inode(iNumber);
-
-                // if the file is requesting ofr reading
-                if (mode.equals("r")) {
-                    
-                    // and its flag is read or used or unused 
-                    // (nobody has read or written to that file)
-                    if (inode.flag == READ 
-                        || inode.flag == USED 
-                        || inode.flag == UNUSED) {
-
-                        // change the flag of the node to read and break
-                        inode.flag = READ;
-                        break;
-                    
-                    // if the file is already written by someone, wait until finish
-                    } else if (inode.flag == WRITE) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) { }
-                    }
-
-                // if the file is requested for writing or writing/riding or append
-                } else {
-                    
-                    // and the flag of that file is used, change the flag to write
-                    if (inode.flag == USED || inode.flag == UNUSED) {
-                        inode.flag = WRITE;
-                        break;
-                    
-                    // if the flag is read or write, wait until they finish
-                    } else {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) { }
-                    }
-                }
-
-            // if the node for the given file does not exist,
+                Inode inode = attach(iNumber);
+                if (inode == null)
+                    continue;
+                long stamp = lock(inode, mode);
+                short now = (filename.equals("/") ? (short) 0 : dir.namei(filename));
+                if (now == iNumber && inodes.get(iNumber) == inode)
+                    return newEntry(inode, iNumber, mode, stamp);
+                // deleted while we waited, start over
+                release(inode, stamp);
+                continue;
+            }
+
+            // if the file is requested for reading, it has to exist
+            if (mode.equals("r"))
+                return null;
+
             // create a new inode for that file, use the alloc function from
             // directory to get the inumber
-            } else if (!mode.equals("r")) {
-                iNumber = dir.ialloc(filename);
-                inode = new Inode(iNumber);
-                inode.flag = WRITE;
-                break;
+            synchronized (dir) {
+                if (dir.namei(filename) >= 0)
+                    continue;   // created by someone else meanwhile
+                iNumber = ialloc(filename);
+                if (iNumber < 0)
+                    return null;
+                return create(iNumber, mode);
+            }
+        }
+    }
+
+    /**
+    falloc
+
+    Allocates a new file table entry for an existing inode given by its
+    number, used for files and directories below the root once their path
+    has been resolved. Locks the inode the same way as falloc(String,
+    String). The caller checks the inode still belongs to the path
+    afterwards, since it may have been deleted while waiting.
+
+    @param iNumber the inode number of the file
+    @param mode a String representing the file access mode
+    @return reference to allocated file table entry
+    */
+    public FileTableEntry falloc(short iNumber, String mode) {
+        while (true) {
+            Inode inode = attach(iNumber);
+            if (inode == null)
+                continue;
+            long stamp = lock(inode, mode);
+            if (inodes.get(iNumber) == inode)
+                return newEntry(inode, iNumber, mode, stamp);
+            release(inode, stamp);
+        }
+    }
+
+    /**
+    fhold
+
+    Allocates a file table entry for an existing inode without locking it,
+    so it never waits. FileSystem uses it for the directory files, which
+    users cannot open and which it only reads and writes under its own
+    lock, and to keep an inode in the table while it waits for its lock.
+
+    @param iNumber the inode number of the file
+    @return reference to allocated file table entry, in mode "w+"
+    */
+    public FileTableEntry fhold(short iNumber) {
+        while (true) {
+            Inode inode = attach(iNumber);
+            if (inode != null)
+                return newEntry(inode, iNumber, "w+", 0);
+        }
+    }
+
+    /**
+    funlink
+
+    Marks the in-memory inode of iNumber as no longer named by any
+    directory, so a user who looked it up before can tell.
 
-            } else {
+    @param iNumber the inode number whose name was removed
+    */
+    public void funlink(short iNumber) {
+        iget(iNumber).unlinked = true;
+    }
+
+    /**
+    fcreate
+
+    Allocates an inode number from the root directory under passed name and
+    returns a file table entry for a fresh, empty inode. A name without a
+    leading "/" is a root entry and must not exist yet. Files below the root
+    are registered under "/" and their own name, which only marks the inode
+    number as taken; their name lives in the directory holding them.
+
+    @param name the name to record in the root directory
+    @param mode a String representing the file access mode
+    @return reference to allocated file table entry, or null on failure
+    */
+    public FileTableEntry fcreate(String name, String mode) {
+        synchronized (dir) {
+            if (!name.startsWith("/") && dir.namei(name) >= 0)
                 return null;
-            }
+            short iNumber = ialloc(name);
+            if (iNumber < 0)
+                return null;
+            return create(iNumber, mode);
         }
+    }
 
-        inode.count++;  // increse the number of users
-        inode.toDisk(iNumber);
-        // create new file table entry and add it to the file table
-        FileTableEntry entry = new FileTableEntry(inode, iNumber, mode);
-        table.addElement(entry);
-        return entry;
+    // a newly allocated file starts from an empty inode, whatever a deleted
+    // file may have left behind under this iNumber; nobody else knows it yet,
+    // so its lock is free
+    private FileTableEntry create(short iNumber, String mode) {
+        Inode inode = new Inode();
+        inode.dirty = true;
+        inode.count = 1;
+        long stamp = lock(inode, mode);
+        inodes.put(iNumber, inode);
+        return newEntry(inode, iNumber, mode, stamp);
+    }
+
+    /**
+    isDirectory
+
+    @param iNumber the inode number to check
+    @return true if the inode describes a directory
+    */
+    public boolean isDirectory(short iNumber) {
+        return iget(iNumber).type == Inode.DIRECTORY;
+    }
+
+    // unlocks inode, unless fhold left it unlocked, and gives up the user
+    // taken by attach
+    private void release(Inode inode, long stamp) {
+        if (stamp != 0) {
+            if (inode.lock.isWriteLocked() || inode.lock.getReadLockCount() == 1)
+                inode.flag = USED;
+            inode.lock.unlock(stamp);
+        }
+        detach(inode);
     }
 
     /**
     ffree
 
-    Receives a file table entry references, saves the corresponding inode to
-    the disk, frees its file table entry, and returns true if this file table 
-    entry is found in the table 
+    Receives a file table entry references, releases the corresponding inode
+    in the inode table, frees its file table entry, and returns true if this
+    file table entry is found in the table. Unlocking the inode lets in the
+    next users waiting for that file only.
 
-    @param entry a FileTableEntry reference 
+    @param entry a FileTableEntry reference
     @return boolean result of whether passed entry is found in table
     */
-    public synchronized boolean ffree(FileTableEntry entry) {
-        Inode inode = new Inode(entry.iNumber);
+    public boolean ffree(FileTableEntry entry) {
         // try to remove the given FileTableEntry, if it is in the table,
         // the remove methods will return true
         if (table.remove(entry)) {
-            if (inode.flag == READ) {
-                // if there is only one reader, set the flag to used (no more
-                // users read that file) and wake up one thread(user)
-                if (inode.count == 1) {
-                    notify();
-                    inode.flag = USED;
-                }
-
-            } else if (inode.flag == WRITE) {
-                // set the flag to used
-                inode.flag = USED;
-                // wake up all threads (users) waiting for that file since
-                // there might be threads waiting for a reading which can
-                // execute in concurent mode.
-                notifyAll();
-            }
-
-            // decrease the number of users of that file about one
-            inode.count--;
-            inode.toDisk(entry.iNumber);
+            Inode inode = entry.inode;
+            release(inode, entry.stamp);
+            if (inode.count == 0)
+                evict();
             return true;
         }
         return false;
@@ -159,10 +387,10 @@ public class FileTable {
     fempty
 
     Called before starting a format. Returns true if file table is empty
-    
+
     @return boolean result if file table is empty or not
     */
-    public synchronized boolean fempty() {
+    public boolean fempty() {
         return table.isEmpty();  // return if table is empty
-    }                            
+    }
 }
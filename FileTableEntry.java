@@ -13,6 +13,10 @@ public class FileTableEntry {          // Each table entry should have
    public final short iNumber;         //    this inode number
    public int count;                   //    # threads sharing this entry
    public final String mode;           //    "r", "w", "w+", or "a"
+   public long stamp;                  //    unlocks the inode when freed
+   public int readEnd;                 //    where a sequential read resumes
+   public int aheadWindow;             //    blocks to read ahead, 0 if none
+   public int aheadEnd;                //    first block not read ahead yet
    
    public FileTableEntry ( Inode i, short inumber, String m ) {
       seekPtr = 0;             // the seek pointer is set to the file top
@@ -22,5 +26,6 @@ public class FileTableEntry {          // Each table entry should have
       mode = m;                // once access mode is set, it never changes
       if ( mode.compareTo( "a" ) == 0 ) // if mode is append,
          seekPtr = inode.length;        // seekPtr points to the end of file
+      readEnd = seekPtr;       // a first read from here counts as sequential
    }
 }
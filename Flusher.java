@@ -0,0 +1,40 @@
+/**
+ Flusher Class
+
+ The write-behind thread. FileSystem.write leaves data blocks dirty in the
+ block cache and only marks the inode dirty, so nothing a write changes has
+ to reach the disk before the write returns. The Flusher writes it out in
+ the background: every interval milliseconds, or sooner when the cache
+ reports that most of its frames are dirty, it moves the dirty inodes into
+ the cache and then writes back all dirty blocks in block order. SysLib.sync
+ still writes everything out at once. A pass that fails is reported and the
+ next one tries again, so write-behind never stops silently.
+
+ @file Flusher.java
+ @section 430 Final Project
+*/
+public class Flusher extends Thread {
+   private FileSystem fs;
+   private Cache cache;
+   private int interval;                          // ms between flushes
+
+   public Flusher( FileSystem fs, Cache cache, int interval ) {
+      this.fs = fs;
+      this.cache = cache;
+      this.interval = interval;
+      setDaemon( true );
+   }
+
+   public void run( ) {
+      while ( true ) {
+         cache.waitForPressure( interval );
+         try {
+            fs.writeBehind( );
+            cache.writeBehind( );
+         } catch ( RuntimeException e ) {   // report it, try again next time
+            SysLib.cerr( "threadOS: write-behind failed: " + e.toString( ) +
+                         "\n" );
+         }
+      }
+   }
+}
@@ -1,6 +1,19 @@
 /**
  Inode Class
 
+ An inode describes a file as a list of extents. Each extent is a run of
+ adjacent disk blocks given by its first block and its length, and the
+ extents are listed in file order. Five extents fit in the inode itself;
+ a larger file gets an index block holding 127 more, whose last entry
+ links to another index block once those are used, so a file can have as
+ many extents as the disk has blocks. Finding the disk block behind a file
+ offset is a walk over a handful of extents. The index blocks are decoded
+ into memory the first time they are needed and each is only written back
+ when it has changed. A file of at most 22 bytes keeps its data inline, in
+ the bytes the extents and the index block would use, and moves to disk
+ blocks once it grows past that. The Flusher writes inodes back while their
+ files are in use, so the extents, the index and the inline data are only
+ changed and copied out with the inode's monitor held.
 
  @file Inode.java
  @author Jonathan, part of team Greg and The Gang
@@ -8,49 +21,89 @@
  @date June 4, 2014
 */
 
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
  public class Inode {
    private final static int iNodeSize = 32;       // fix to 32 bytes
-   public final static int directSize = 11;      // # direct pointers
+   public final static int extentSize = 5;        // # extents in the inode
+   public final static int indexExtents = 127;    // # extents in index block
+   private final static short LINK = -1;          // length of the entry
+                                                  // naming the next block
    private final static int maxBytes = 512;
+   public final static byte FILE = 0;             // type of a plain file
+   public final static byte DIRECTORY = 1;        // type of a directory
+   public final static int inlineSize = 22;       // bytes of data kept inline
+   private final static byte INLINE = 1;          // last byte: data is inline
 
    public int length;                             // file size in bytes
    public short count;                            // # file-table entries pointing to this
    public short flag;                             // 0 = unused, 1 = used, ...
-   public short direct[] = new short[directSize]; // direct pointers
-   public short indirect;                         // a indirect pointer
+   public short extStart[] = new short[extentSize];  // first block of extent
+   public short extLength[] = new short[extentSize]; // # blocks, 0 = unused
+   public short indirect;                         // index block of extents
+   public byte type;                              // FILE or DIRECTORY
+   public byte inline[];                          // inline data, null if the
+                                                  // file is in disk blocks
+   private short index[];                         // decoded index blocks
+   private short chain[];                         // the index blocks in order
+   private boolean chainDirty[];                  // index block changed
+   private volatile boolean indexDirty;           // index changed in memory
+   public volatile boolean dirty;                 // changed since last toDisk
+   public volatile boolean unlinked;              // name removed, not on disk
+   public int preallocNext;                       // next reserved free block
+   public int preallocLeft;                       // # reserved blocks left
+   static SuperBlock superblock;                  // locates inode blocks
+   private final static Object blockLock = new Object(); // one inode block
+                                                  // update at a time
+   public final StampedLock lock = new StampedLock(); // "r" shared, else alone
 
    /*************************************************************************
     * Inode() constructor:
     *************************************************************************/
    Inode( ) {                                     // a default constructor
+      clear();
+      flag = 1;
+   }
+
+   // an empty file in no blocks, as an unused inode reads
+   private void clear( ) {
       length = 0;
       count = 0;
-      flag = 1;
-      for ( int i = 0; i < directSize; i++ )
-         direct[i] = -1;
+      flag = 0;
+      for ( int i = 0; i < extentSize; i++ ) {
+         extStart[i] = -1;
+         extLength[i] = 0;
+      }
       indirect = -1;
+      type = FILE;
+      inline = new byte[inlineSize];              // new files start inline
    }
 
    /*************************************************************************
     * Inode(short) constructor: 
     *
-    * Figures out how many blocks needed. Reads amount of blocks from disk.
-    * Initializes data members with buffer size corresponding to the size of
-    * each data type. This includes the length, count, flag, and the indirect
-    * and direct pointers. The blkNumber is calculated by taking the format
-    * of 16 inodes per superblock and then adding one to reach the next
-    * superblock.
+    * Reads the block holding the inode from disk and initializes data
+    * members from it: the length, count, flag, the (start, length) pair of
+    * each extent, the index block and the type. The blkNumber is asked
+    * from the superblock: inodes created by format are 16 per block after
+    * the superblock, inodes added later live in chunks listed in its inode
+    * map. An inode never written since format, or written with flag 0, is
+    * unused and comes back as an empty file.
     *************************************************************************/
    Inode( short iNumber ) {      // retrieving inode from disk
-      // design it by yourself.
-      // figure out how many blocks to use by the inode (file) amount
-      int blkNumber = 1 + iNumber / 16; //blocks are formatted by size of 16
+      if (!superblock.inodeStored(iNumber)) {   // block still blank
+         clear();
+         return;
+      }
+
+      // figure out which block holds the inode
+      int blkNumber = superblock.inodeBlock(iNumber);
       byte[] data = new byte[maxBytes];
-      SysLib.rawread(blkNumber,data);
+      SysLib.cread(blkNumber,data);
 
-      //figure out how much to offset the initialize by getting the number
-      //of blocks and then multiply by the size of an inode
-      int offset = (iNumber % 16) * iNodeSize;
+      //figure out how much to offset the initialize by, 16 inodes per block
+      int offset = superblock.inodeOffset(iNumber);
 
       //create space for data members
       length = SysLib.bytes2int(data,offset);
@@ -59,28 +112,88 @@
       offset +=2; //offset by 2 for shorts
       flag = SysLib.bytes2short(data,offset);
       offset +=2;
+      if (flag == 0) {                          // unused, or a cleared block
+         clear();
+         return;
+      }
 
-      //allocate space for pointers
-      for (int i = 0; i < directSize; i++) {
-         direct[i] = SysLib.bytes2short(data,offset);
+      //read the inline data, or else the extents
+      if (data[offset + inlineSize + 1] == INLINE) {
+         inline = new byte[inlineSize];
+         System.arraycopy(data, offset, inline, 0, inlineSize);
+         offset += inlineSize;
+         for (int i = 0; i < extentSize; i++) {
+            extStart[i] = -1;
+            extLength[i] = 0;
+         }
+         indirect = -1;
+      } else {
+         for (int i = 0; i < extentSize; i++) {
+            extStart[i] = SysLib.bytes2short(data,offset);
+            offset +=2;
+            extLength[i] = SysLib.bytes2short(data,offset);
+            offset +=2;
+         }
+         indirect = SysLib.bytes2short(data,offset);
          offset +=2;
       }
-      indirect = SysLib.bytes2short(data,offset);
-      offset +=2;
+      type = data[offset];
    }
 
    /*************************************************************************
     * toDisk:
     *
     * Write back inode contents to disk. This includes the length, count,
-    * flag, direct[], and indirect. Information is saved to the iNumber inode
-    * in the disk.
+    * flag, the extents and the index block (or the inline data in their
+    * place), the type and whether the data is inline. Information is saved
+    * to the iNumber inode in the disk. The inode is marked clean before it
+    * is copied, so a change made meanwhile by a writer leaves it dirty.
     *************************************************************************/
    void toDisk( short iNumber ) {   // save to disk as the i-th inode
-      // initialize buffer size
-      byte[] data = new byte[iNodeSize];
+      toDisk(Collections.singletonMap(iNumber, this));
+   }
 
-      int offset = 0;
+   /*************************************************************************
+    * toDisk (batch):
+    *
+    * Writes back the given inodes grouped by the block holding them, so a
+    * block is read and written once however many of its 16 inodes changed.
+    * A block all of whose inodes are given is not read at all.
+    *************************************************************************/
+   static void toDisk( Map<Short, Inode> inodes ) {
+      // group the iNumbers by inode block
+      TreeMap<Integer, List<Short>> blocks = new TreeMap<Integer, List<Short>>();
+      for (Short iNumber : inodes.keySet())
+         blocks.computeIfAbsent(superblock.inodeBlock(iNumber),
+                                b -> new ArrayList<Short>()).add(iNumber);
+
+      for (Map.Entry<Integer, List<Short>> block : blocks.entrySet()) {
+        List<Short> iNumbers = block.getValue();
+        byte[] newData = new byte[maxBytes];
+        synchronized (blockLock) {   // the other inodes must not change
+          short first = iNumbers.get(0);
+          if (!superblock.inodeStored(first))
+            superblock.storeInode(first);   // blank block, start from zeros
+          else if (iNumbers.size() < maxBytes / iNodeSize)
+            SysLib.cread(block.getKey(),newData);
+
+          //copy each inode to its offset, same process as constructor
+          for (short iNumber : iNumbers)
+            inodes.get(iNumber).toBytes(newData,
+                                        superblock.inodeOffset(iNumber));
+          //now write that newData to disk
+          SysLib.cwrite(block.getKey(),newData);
+        }
+      }
+
+      //write the index blocks too if they were changed in memory
+      for (Inode inode : inodes.values())
+         inode.indexToDisk();
+   }
+
+   // copies the inode into data at offset and marks it clean
+   private synchronized void toBytes( byte[] data, int offset ) {
+      dirty = false;
 
       SysLib.int2bytes(length, data, offset);
       offset +=4; //offset by 4 for int
@@ -89,96 +202,232 @@
       SysLib.short2bytes(flag, data, offset);
       offset +=2;
 
-      //allocate space for pointers
-      for (int i = 0; i < directSize; i++) {
-         SysLib.short2bytes(direct[i], data, offset);
+      //write the inline data, or else the extents
+      if (inline != null) {
+         System.arraycopy(inline, 0, data, offset, inlineSize);
+         offset += inlineSize;
+         data[offset + 1] = INLINE;
+      } else {
+         for (int i = 0; i < extentSize; i++) {
+            SysLib.short2bytes(extStart[i], data, offset);
+            offset +=2;
+            SysLib.short2bytes(extLength[i], data, offset);
+            offset +=2;
+         }
+         SysLib.short2bytes(indirect, data, offset);
          offset +=2;
+         data[offset + 1] = 0;   // not inline, whatever the block held
       }
-      SysLib.short2bytes(indirect, data, offset);
-      offset +=2;
+      data[offset] = type;
+   }
 
-      int blkNumber = 1 + iNumber / 16; 
-      byte[] newData = new byte[maxBytes];
-      SysLib.rawread(blkNumber,newData);
+   // writes the index blocks that were changed in memory, each with the
+   // link to the one after it
+   private synchronized void indexToDisk( ) {
+      if (indexDirty && indirect >= 0){
+        indexDirty = false;
+        for (int b = 0; b < chain.length; b++){
+          if (!chainDirty[b])
+            continue;
+          chainDirty[b] = false;
+          byte[] indexData = new byte[maxBytes];
+          for (int i = 0; i < indexExtents * 2; i++)
+            SysLib.short2bytes(index[b * indexExtents * 2 + i], indexData, i * 2);
+          if (b + 1 < chain.length){
+            SysLib.short2bytes(chain[b + 1], indexData, indexExtents * 4);
+            SysLib.short2bytes(LINK, indexData, indexExtents * 4 + 2);
+          }
+          SysLib.cwrite(chain[b], indexData);
+        }
+      }
+   }
 
-      offset = (iNumber % 16) * iNodeSize; //same process as constructor
+   /*************************************************************************
+    * Extent slots:
+    *
+    * Slots 0 to extentSize - 1 are the extents in the inode, the following
+    * ones live in the index blocks, indexExtents to a block, as (start,
+    * length) pairs of the decoded index[].
+    *************************************************************************/
+   private short slotStart(int slot, short[] index){
+      if (slot < extentSize)
+        return extStart[slot];
+      return index[(slot - extentSize) * 2];
+   }
+
+   private short slotLength(int slot, short[] index){
+      if (slot < extentSize)
+        return extLength[slot];
+      return index[(slot - extentSize) * 2 + 1];
+   }
 
-      //copy all of iNodeSize of data into newData array
-      System.arraycopy(data, 0, newData, offset, iNodeSize);
-      //now write that newData to disk at offset bit
-      SysLib.rawwrite(blkNumber,newData);
+   private void setSlot(int slot, short start, short len, short[] index){
+      if (slot < extentSize){
+        extStart[slot] = start;
+        extLength[slot] = len;
+      }
+      else{
+        index[(slot - extentSize) * 2] = start;
+        index[(slot - extentSize) * 2 + 1] = len;
+        chainDirty[(slot - extentSize) / indexExtents] = true;
+        indexDirty = true;
+      }
+   }
+
+   // number of slots that can be looked at with the given index
+   private int slots(short[] index){
+      return extentSize + ((index != null) ? index.length / 2 : 0);
+   }
+
+   // the decoded index blocks, or null if the file does not have any. The
+   // chain is only read from disk the first time.
+   private synchronized short[] readIndexBlock(){
+      if (indirect < 0)
+        return null;
+      if (index == null){
+        short[] blocks = new short[0];
+        short[] extents = new short[0];
+        for (short next = indirect; next >= 0; ){
+          byte[] data = new byte[maxBytes];
+          SysLib.cread(next, data);
+          blocks = Arrays.copyOf(blocks, blocks.length + 1);
+          blocks[blocks.length - 1] = next;
+          extents = Arrays.copyOf(extents, extents.length + indexExtents * 2);
+          for (int i = 0; i < indexExtents * 2; i++)
+            extents[extents.length - indexExtents * 2 + i] =
+              SysLib.bytes2short(data, i * 2);
+          next = (SysLib.bytes2short(data, indexExtents * 4 + 2) == LINK) ?
+            SysLib.bytes2short(data, indexExtents * 4) : -1;
+        }
+        chain = blocks;
+        chainDirty = new boolean[blocks.length];
+        index = extents;
+        indexDirty = false;
+      }
+      return index;
+   }
+
+   // the index block is only needed once the inode's own extents are full
+   private boolean needsIndex(int target){
+      int base = 0;
+      for (int i = 0; i < extentSize; i++){
+        if (extLength[i] <= 0)
+          return false;
+        base += extLength[i];
+      }
+      return target >= base;
+   }
+
+   /*************************************************************************
+    * mapBlock:
+    *
+    * Walks the extents in file order and returns the disk block holding
+    * file block target, or -1 if the file has no such block.
+    *************************************************************************/
+   private int mapBlock(int target, short[] index){
+      int base = 0;
+      for (int i = 0; i < slots(index); i++){
+        short len = slotLength(i, index);
+        if (len <= 0)
+          return -1;
+        if (target < base + len)
+          return slotStart(i, index) + (target - base);
+        base += len;
+      }
+      return -1;
    }
    
    /*************************************************************************
     * getIndexBlockNumber:
     *
-    * Run through direct and indirect ptrs to block and read data if ptr
-    * returns valid. else it will return error code.
+    * Adds block offset as the file block holding byte entry. Files only
+    * grow at their end: the block is appended to the last extent when it
+    * is the next block on disk, otherwise it starts a new extent.
     * IndexBlockNumber return values:
     *  0 = unused
     * -1 = error on write to used block
     * -2 = error on write to unused block
-    * -3 = error on write to null pointer
+    * -3 = error on write to null pointer (no extent slot left, the file
+    *      needs another index block)
     *************************************************************************/
-   int getIndexBlockNumber(int entry, short offset){
+   synchronized int getIndexBlockNumber(int entry, short offset){
     int target = entry / maxBytes;
+    short[] index = readIndexBlock();
 
-    if (target < directSize){
-      if (direct[target] >= 0){
-        return -1;
-      }
-      //check if direct pointer is pointing to
-      if((target > 0) && (direct[(target - 1)] == -1)){
-        return -2;
-      }
-      direct[target] = offset;
-      return 0; //unused
+    // find the last extent and how many blocks the file has
+    int last = -1;
+    int allocated = 0;
+    for (int i = 0; i < slots(index); i++){
+      short len = slotLength(i, index);
+      if (len <= 0)
+        break;
+      allocated += len;
+      last = i;
     }
 
-    if (indirect < 0){
-      return -3;
+    if (target < allocated){
+      return -1;
+    }
+    //check if the previous block is allocated
+    if (target > allocated){
+      return -2;
     }
-    else{
-
-      byte[] data = new byte[maxBytes];
-      SysLib.rawread(indirect,data);
 
-      int blockSpace = (target - directSize) * 2;
-      if (SysLib.bytes2short(data, blockSpace) > 0){
-        return -1;
-      }
-      else{
-        SysLib.short2bytes(offset, data, blockSpace);
-        SysLib.rawwrite(indirect, data);
-      }
+    if (last >= 0 && slotLength(last, index) < Short.MAX_VALUE
+        && slotStart(last, index) + slotLength(last, index) == offset){
+      setSlot(last, slotStart(last, index),
+              (short) (slotLength(last, index) + 1), index);
     }
+    else if (last + 1 < slots(index)){
+      setSlot(last + 1, offset, (short) 1, index);
+    }
+    else{
+      return -3;
+    }
+
+    dirty = true;
     return 0; //unused
    }
 
    /*************************************************************************
     * setIndexBlock: 
     *
-    * If index block indirect pointer is not set to -1, or if all the
-    * direct pointers are = -1 then return false. Else the indirect pointer
-    * will point to the indexBlockNumber passed, and data will be written.
-    * Returns true if Else is the case.
+    * If the inode or its index blocks still have an unused extent, or
+    * indexBlockNumber is not a block, then return false. Else the indirect
+    * pointer, or the last index block when there is one, will point to the
+    * indexBlockNumber passed, with an empty extent list that is written out
+    * with the inode. Returns true if Else is the case.
     *************************************************************************/
-   boolean setIndexBlock(short indexBlockNumber){
-    // check pointers
-    for (int i = 0; i < directSize; i++){ //direct pointers
-      if (direct[i] == -1)
+   synchronized boolean setIndexBlock(short indexBlockNumber){
+    // check extents
+    for (int i = 0; i < extentSize; i++){
+      if (extLength[i] <= 0)
         return false;
     }
-    if (indirect != -1)
+    if (indexBlockNumber < 0)
       return false;
 
-    indirect = indexBlockNumber;
-    byte[] data = new byte[maxBytes];
-
-    for (int i = 0; i < (maxBytes/2); i++){
-        SysLib.short2bytes((short) -1, data, i*2);
+    if (indirect == -1){
+      indirect = indexBlockNumber;
+      chain = new short[] { indexBlockNumber };
+      chainDirty = new boolean[1];
+      index = new short[indexExtents * 2];  // all extents have length 0
     }
-    SysLib.rawwrite(indexBlockNumber, data);
+    else{
+      short[] index = readIndexBlock();
+      if (index[index.length - 1] <= 0)     // last extent still unused
+        return false;
+      short[] blocks = Arrays.copyOf(chain, chain.length + 1);
+      blocks[blocks.length - 1] = indexBlockNumber;
+      boolean[] changed = Arrays.copyOf(chainDirty, blocks.length);
+      changed[blocks.length - 2] = true;    // now links to the new block
+      chain = blocks;
+      chainDirty = changed;
+      this.index = Arrays.copyOf(index, index.length + indexExtents * 2);
+    }
+    chainDirty[chain.length - 1] = true;
+    indexDirty = true;
+    dirty = true;
 
     return true;
    }
@@ -186,45 +435,65 @@
    /*************************************************************************
     * findTargetBlock:
     *
-    * If the target is < 11 then return target block of direct pointer.
-    * If the indirect pointer is < 0 then return the value of the index -1.
-    * Else, write byte data using bytes2short method at the block space
-    * calculated by taking the target block - the directSize space.
-    * Then multiply by 2 for size of .
+    * Returns the disk block holding byte offset of the file, or -1 if it
+    * is not allocated. The index block is only needed when offset lies past
+    * the extents kept in the inode.
     *************************************************************************/
    int findTargetBlock(int offset){ 
       int target = offset / maxBytes;
+      return mapBlock(target, needsIndex(target) ? readIndexBlock() : null);
+   }
 
-      if (target < directSize)
-        return direct[target];
-
-      if (indirect < 0)
-        return -1;
-
-      byte[] data = new byte[maxBytes];
-      SysLib.rawread(indirect, data);
+   /*************************************************************************
+    * findTargetBlocks:
+    *
+    * Fills targets with the disk blocks holding consecutive file blocks,
+    * starting at the one containing offset. Returns how many leading entries are valid; it stops at the
+    * first block that is not allocated.
+    *************************************************************************/
+   int findTargetBlocks(int offset, int[] targets){
+      int first = offset / maxBytes;
+      short[] index = needsIndex(first + targets.length - 1) ?
+        readIndexBlock() : null;
 
-      int blockSpace = (target - directSize) *2;
-      return SysLib.bytes2short(data, blockSpace);
+      for (int i = 0; i < targets.length; i++){
+        targets[i] = mapBlock(first + i, index);
+        if (targets[i] < 0)
+          return i;
+      }
+      return targets.length;
    }
 
     /*************************************************************************
-    * removeIndexBlock:
+    * indexBlocks:
+    *
+    * Returns the index blocks of the file, in chain order; none if it does
+    * not have any.
+    *************************************************************************/
+    synchronized short[] indexBlocks()
+    {
+      return (readIndexBlock() != null) ? chain.clone() : new short[0];
+    }
+
+    /*************************************************************************
+    * freeIndirectBlock:
     *
-    * 
-    * Reads data from indirect pointer unless pointer is value -1, then
-    * return null. The data is returned to the FileSystem to deallocate block.
+    * Returns the (start, length) pairs of the index blocks unless pointer
+    * is value -1, then return null. They are returned to the FileSystem to
+    * deallocate blocks, and the inode forgets its index blocks.
     *************************************************************************/
-    byte[] freeIndirectBlock()
+    synchronized short[] freeIndirectBlock()
     {
       if (indirect >= 0) {
-        byte[] data = new byte[maxBytes];
-        SysLib.rawread(indirect, data);
+        short[] data = readIndexBlock();
         indirect = -1;
+        index = null;
+        chain = null;
+        chainDirty = null;
+        indexDirty = false;
         return data;
       }
       else
         return null; //nothing to free
     }
 } //end Inode.java
-
@@ -1,6 +1,7 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class Kernel
 {
@@ -36,6 +37,36 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored block reads
+   public final static int RAWREADV= 20; // SysLib.rawreadv(int blk[], byte b[])
+   public final static int CREADV  = 21; // SysLib.creadv(int blk[], byte b[])
+
+   // Directories below the root
+   public final static int MKDIR   = 22; // SysLib.mkdir( String dirName )
+
+   // Positional reads
+   public final static int PREAD   = 23; // SysLib.pread( int fd, byte b[],
+   //              int offset )
+
+   // Asynchronous block I/O
+   public final static int AREAD   = 24; // SysLib.aread(int blk, byte b[])
+   public final static int AWRITE  = 25; // SysLib.awrite(int blk, byte b[])
+   public final static int AWAIT   = 26; // SysLib.await( int id )
+   public final static int APOLL   = 27; // SysLib.poll( int id )
+
+   // Read-ahead into the cache
+   public final static int CPREFETCH = 28; // SysLib.cprefetch(int blk[])
+
+   // Block cache slices, copied straight to or from a ByteBuffer
+   public final static int CREADB  = 29; // SysLib.creadv(int blk[], int offset,
+   //              ByteBuffer b)
+   public final static int CWRITEB = 30; // SysLib.cwrite(int blk, int offset,
+   //              ByteBuffer b, boolean fresh)
+
+   // A batch of asynchronous block reads
+   public final static int AREADV  = 31; // SysLib.areadv(int blk[], byte b[],
+   //              int ids[])
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -50,15 +81,29 @@ public class Kernel
    private static Disk disk;
    private static Cache cache;
 
+   // Disk request scheduling
+   private final static int DISK_POLICY = Disk.CLOOK;
+
+   // Block cache configuration
+   private final static int CACHE_BLOCKS = 64;
+   private final static int CACHE_POLICY = Cache.SECOND_CHANCE;
+
+   // Write-behind: milliseconds between background flushes
+   private final static int FLUSH_INTERVAL = 1000;
+   private static Flusher flusher;
+
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
    private static SyncQueue ioQueue;    // I/O queue
 
+   // Disk requests issued by AREAD and AWRITE that nobody has awaited yet
+   private static HashMap<Integer, Disk.Request> pending;
+   private static int nextRequestId;
+
    // File System
    private static FileSystem fs;
 
    private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
 
    // Standard input
    private static BufferedReader input
@@ -67,6 +112,7 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      Disk.Request request;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
@@ -76,19 +122,28 @@ public class Kernel
                   scheduler.start( );
 
                   // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  disk = new Disk( 1000, DISK_POLICY );
                   disk.start( );
 
                   // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  cache = new Cache( disk.blockSize, CACHE_BLOCKS,
+                                     CACHE_POLICY );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
+                  // nothing is in flight yet
+                  pending = new HashMap<Integer, Disk.Request>( );
+                  nextRequestId = 0;
+
                   // instantiate a file system;
                   fs = new FileSystem( 1000 );
 
+                  // instantiate and start the write-behind thread
+                  flusher = new Flusher( fs, cache, FLUSH_INTERVAL );
+                  flusher.start( );
+
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
@@ -116,24 +171,79 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.read( param, ( byte[] )args ) )
+                          == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  request.waitDone( );
+                  return request.succeeded( ) ? OK : ERROR;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.write( param, ( byte[] )args ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  request.waitDone( );
+                  return request.succeeded( ) ? OK : ERROR;
+               case RAWREADV: // read several blocks in one disk request
+                  Object[] vec = ( Object[] )args;
+                  Disk.Request[] requests;
+                  while ( ( requests = disk.readv( ( int[] )vec[0],
+                                                   ( byte[] )vec[1] ) ) == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  int result = OK;
+                  for ( int i = 0; i < requests.length; i++ ) {
+                     requests[i].waitDone( );
+                     if ( !requests[i].succeeded( ) )
+                        result = ERROR;
+                  }
+                  return result;
+               case AREAD:   // queue a block read, return its id at once
+                  while ( ( request = disk.read( param, ( byte[] )args ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  if ( !request.succeeded( ) )   // a wrong blockId
+                     return ERROR;
+                  return register( request );
+               case AREADV:  // queue a batch of block reads, an id for each
+                  vec = ( Object[] )args;
+                  while ( ( requests = disk.readv( ( int[] )vec[0],
+                                                   ( byte[] )vec[1] ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  if ( !requests[0].succeeded( ) )   // a wrong blockId
+                     return ERROR;
+                  for ( int i = 0; i < requests.length; i++ )
+                     ( ( int[] )vec[2] )[i] = register( requests[i] );
                   return OK;
+               case AWRITE:  // queue a block write, return its id at once
+                  while ( ( request = disk.write( param, ( byte[] )args ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  if ( !request.succeeded( ) )   // a wrong blockId
+                     return ERROR;
+                  return register( request );
+               case AWAIT:   // wait for a queued request and forget its id
+                  synchronized ( pending ) {
+                     request = pending.remove( param );
+                  }
+                  if ( request == null )
+                     return ERROR;
+                  request.waitDone( );
+                  return request.succeeded( ) ? OK : ERROR;
+               case APOLL:   // 0 if not done yet, else forget its id and
+                             // return 1, or ERROR if the request failed
+                  synchronized ( pending ) {
+                     request = pending.get( param );
+                     if ( request == null )
+                        return ERROR;
+                     if ( !request.isDone( ) )
+                        return 0;
+                     pending.remove( param );
+                  }
+                  return request.succeeded( ) ? 1 : ERROR;
                case SYNC:     // synchronize disk data to a real file
                   fs.sync( );
-                  while ( disk.sync( ) == false )
+                  while ( ( request = disk.sync( ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  request.waitDone( );
+                  return request.succeeded( ) ? OK : ERROR;
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -161,6 +271,8 @@ public class Kernel
                   }
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null && args instanceof ByteBuffer )
+                        return fs.read( ftEnt, ( ByteBuffer )args );
                      if ( ftEnt != null )
                         return fs.read( ftEnt, ( byte[] )args );
                   }
@@ -179,6 +291,8 @@ public class Kernel
                   }
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null && args instanceof ByteBuffer )
+                        return fs.write( ftEnt, ( ByteBuffer )args );
                      if ( ftEnt != null )
                         return fs.write( ftEnt, ( byte[] )args );
                   }
@@ -187,6 +301,24 @@ public class Kernel
                   return cache.read( param, ( byte[] )args ) ? OK : ERROR;
                case CWRITE:  // to be implemented in assignment 4
                   return cache.write( param, ( byte[] )args ) ? OK : ERROR;
+               case CREADV:  // read several blocks through the cache
+                  Object[] cvec = ( Object[] )args;
+                  return cache.read( ( int[] )cvec[0], ( byte[] )cvec[1] ) ?
+                     OK : ERROR;
+               case CREADB:  // read a run of cached bytes into a ByteBuffer
+                  Object[] rslice = ( Object[] )args;
+                  return cache.read( ( int[] )rslice[0],
+                                     ( ( Integer )rslice[1] ).intValue( ),
+                                     ( ByteBuffer )rslice[2] ) ? OK : ERROR;
+               case CWRITEB: // write a ByteBuffer into part of a block
+                  Object[] wslice = ( Object[] )args;
+                  return cache.write( param,
+                                      ( ( Integer )wslice[0] ).intValue( ),
+                                      ( ByteBuffer )wslice[1],
+                                      ( ( Boolean )wslice[2] ).booleanValue( ) );
+               case CPREFETCH: // start reading blocks into the cache
+                  cache.prefetch( ( int[] )args );
+                  return OK;
                case CSYNC:   // to be implemented in assignment 4
                   cache.sync( );
                   return OK;
@@ -228,12 +360,22 @@ public class Kernel
                   return ( fs.format( param ) == true ) ? OK : ERROR;
                case DELETE:  // to be implemented in project
                   return ( fs.delete( (String)args ) == true ) ? OK : ERROR;
+               case PREAD:   // read at an offset, seek pointer untouched
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     Object[] preadArgs = ( Object[] )args;
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return fs.pread( ftEnt, ( byte[] )preadArgs[0],
+                                         ( ( Integer )preadArgs[1] ).intValue( ) );
+                  }
+                  return ERROR;
+               case MKDIR:
+                  return ( fs.mkdir( (String)args ) == true ) ? OK : ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
+            // the thread waiting for a service completion is woken up by
+            // its own Disk.Request; a queue slot has just been freed, so
             // wake up the thread waiting for a request acceptance
             ioQueue.dequeueAndWakeup( COND_DISK_REQ );
 
@@ -244,6 +386,16 @@ public class Kernel
       return OK;
    }
 
+   // Give an accepted disk request an id that AWAIT and APOLL accept
+   private static int register( Disk.Request request ) {
+      synchronized ( pending ) {
+         int id = nextRequestId;
+         nextRequestId = ( nextRequestId + 1 ) & Integer.MAX_VALUE;
+         pending.put( id, request );
+         return id;
+      }
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -8,31 +8,63 @@ Greg And The Gang*/
 // final prject in ThreadOS. SuperBlock reads the physical SuperBlock from the disk,
 // validates the health of the disk and provides methods for identifying free blocks,
 // adding blocks to the free list, and writing back to disk the conents of SuperBlock.
+// Free space is tracked by a bitmap with one bit per disk block (set when the block is
+// in use). The bitmap is kept in memory and stored in block zero after the SuperBlock
+// fields, spilling into the blocks right after the inodes on disks too large for that.
+// Inodes beyond the number given to format are added on demand in chunks of 16, each
+// chunk taking one data block. The chunk blocks are listed in the inode map, a chain of
+// map blocks starting at the block named in block zero.
+// Format writes no inodes. Block zero records how many of the inode blocks are still
+// blank, meaning they hold whatever the disk held before; an inode in a blank block is
+// read as unused without touching the disk, and a blank block is cleared when an inode in
+// it is first written.
+// Threads writing different files allocate and free blocks at the same time, so every
+// method that reads or changes the bitmap or the free list head holds the SuperBlock's
+// monitor.
 public class SuperBlock{
 	private final int defaultInodeBlocks = 64;
 	private final int totalBlockLocation = 0;
 	private final int totalInodeLocation = 4;
 	private final int freeListLocation = 8;
-	private final int defaultBlocks = 1000;
+	private final int magicLocation = 12;
+	private final int inodeMapLocation = 16;
+	private final int inodeChunksLocation = 20;
+	private final int blankInodesLocation = 24; // # inode blocks not written since format
+	private final int bitmapLocation = 32;
+	private final int layoutMagic = 0x45585431; // "EXT1", bitmap free space and extent inodes
+	private final int inodesPerBlock = 16;
+	private final int inodeSize = 32;
+	private final int mapEntries = Disk.blockSize / 2 - 1; // chunks per map block, last short links on
+	private final int maxInodes = Short.MAX_VALUE;         // iNumbers are shorts
 
 	public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of inodes
-    public int freeList;    // the block number of the free list's head
+    public int freeList;    // the lowest block number that may be free
 
     //!!!FOR TESTING ONLY, SYNCING NAMES WITH CURRENT IMPLEMENTATION
     public int inodeBlocks;
 
+	private long[] bitmap;  // free-block bitmap, bit set = block in use
+	private long[] reserved;// blocks set aside for a growing file, not yet written
+	private short[] inodeChunks; // block of each chunk of added inodes
+	private int chunks;          // # chunks in use
+	private short[] mapBlocks;   // blocks of the inode map chain
+	private volatile int blankFrom; // first inode block, counted from 0, never written
+
     // SuperBlock Constructor
     // Public constructor for SuperBlock accepts a single int argument equal to the total
     // number of blocks on the Disk. The constructor will read the SuperBlock from disk and
     // intialize member variables for the number of blocks, the number of inodes, and the
-    // block number of the free list's head. The constructor for SuperBlock is taken from
-    // the CSS430 Final Project PDF with permission.
+    // lowest free block, then load the free-block bitmap into memory. The constructor for
+    // SuperBlock is taken from the CSS430 Final Project PDF with permission.
 	public SuperBlock(int numBlocks){
+		//inodes find their blocks through the superblock, which may format right away
+		Inode.superblock = this;
+
 		//read sblock from Disk 	!!!NEEDS PUBLIC PROPERTY OF DISK CALLED BLOCKSIZE (CAMEL CASE)
 		byte[] superBlock = new byte[Disk.blockSize];
 		//superblock always located in block zero
-		SysLib.rawread(0, superBlock);
+		SysLib.cread(0, superBlock);
 
 		//read total number of blocks
 		totalBlocks = SysLib.bytes2int(superBlock,totalBlockLocation);
@@ -45,8 +77,12 @@ public class SuperBlock{
 		inodeBlocks = totalInodes;
 
 		//validate disk contents
-		if(totalBlocks == numBlocks && totalInodes > 0 && freeList >= 2){
+		if(totalBlocks == numBlocks && totalInodes > 0 && freeList >= 2
+				&& SysLib.bytes2int(superBlock,magicLocation) == layoutMagic){
 			//valid disk
+			loadBitmap(superBlock);
+			loadInodeMap(superBlock);
+			blankFrom = inodeBlockCount() - SysLib.bytes2int(superBlock,blankInodesLocation);
 			return;
 		}
 		else{
@@ -60,7 +96,8 @@ public class SuperBlock{
 	// Sync Method
 	// The Sync method brings the physical SuperBlock contents (at block zero on disk) in line
 	// with any updates performed to the SuperBlock class instance. Sync will write back to disk
-	// the total number of blocks, the total number of inodes, and the free list.
+	// the total number of blocks, the total number of inodes, the free list head and the
+	// free-block bitmap.
 	public void sync(){
 		//create fresh block to hold superblock data
 		byte[] newSuper = new byte[Disk.blockSize];
@@ -69,86 +106,209 @@ public class SuperBlock{
 		SysLib.int2bytes(totalBlocks,newSuper,totalBlockLocation);
 		//write total number of inodes to new super
 		SysLib.int2bytes(totalInodes,newSuper,totalInodeLocation);
-		//write free list to new super
-		SysLib.int2bytes(freeList,newSuper,freeListLocation);
+		//mark the disk as using the current layout
+		SysLib.int2bytes(layoutMagic,newSuper,magicLocation);
+		//write where the inode map starts and how many chunks it lists
+		SysLib.int2bytes(chunks > 0 ? mapBlocks[0] : 0,newSuper,inodeMapLocation);
+		SysLib.int2bytes(chunks,newSuper,inodeChunksLocation);
+		//write how many inode blocks are still blank
+		SysLib.int2bytes(inodeBlockCount() - blankFrom,newSuper,blankInodesLocation);
+
+		//serialize the bitmap, the first part shares block zero, and write the free list
+		//taken at the same moment
+		byte[] map;
+		synchronized(this){
+			SysLib.int2bytes(freeList,newSuper,freeListLocation);
+			map = bitmap2bytes();
+		}
+		int inSuper = Math.min(map.length, Disk.blockSize - bitmapLocation);
+		System.arraycopy(map, 0, newSuper, bitmapLocation, inSuper);
 
 		//write new super to disk
-		SysLib.rawwrite(0,newSuper);
+		SysLib.cwrite(0,newSuper);
+
+		//write the rest of the bitmap to its own blocks
+		for(int i = 0; i < bitmapBlocks(); i++){
+			byte[] mapBlock = new byte[Disk.blockSize];
+			int from = inSuper + i * Disk.blockSize;
+			System.arraycopy(map, from, mapBlock, 0,
+					Math.min(Disk.blockSize, map.length - from));
+			SysLib.cwrite(firstBitmapBlock() + i, mapBlock);
+		}
+
+		//write the inode map, each block linking to the next
+		for(int m = 0; m * mapEntries < chunks; m++){
+			byte[] mapBlock = new byte[Disk.blockSize];
+			for(int i = 0; i < mapEntries && m * mapEntries + i < chunks; i++){
+				SysLib.short2bytes(inodeChunks[m * mapEntries + i], mapBlock, i * 2);
+			}
+			short next = (m + 1) * mapEntries < chunks ? mapBlocks[m + 1] : 0;
+			SysLib.short2bytes(next, mapBlock, mapEntries * 2);
+			SysLib.cwrite(mapBlocks[m], mapBlock);
+		}
 	}
 
-	// getFreeBlock Method
-	// The getFreeBlock method returns the first free block from the free list. The free block is the
-	// top block from the free queue and is returned as an integer value. If there is an error 
-	// (specifically, the absence of free blocks) -1 is returned to signify the operation failed.
-	public int getFreeBlock(){
-		//validate that the freeList head is within range   !!!MAY BE <= totalBlocks
-		if(freeList > 0 && freeList < totalBlocks){
-			//create dummy block to hold first free block
-			byte[] freeBlock = new byte[Disk.blockSize];
+	// inodeCount Method
+	// Returns the number of inodes: those created by format plus the ones added since.
+	public int inodeCount(){
+		return totalInodes + chunks * inodesPerBlock;
+	}
+
+	// inodeBlock Method
+	// Returns the disk block holding inode iNumber. Inodes created by format sit in the
+	// blocks right after the SuperBlock, the others in the chunk the inode map lists.
+	public int inodeBlock(int iNumber){
+		if(iNumber < totalInodes){
+			return 1 + iNumber / inodesPerBlock;
+		}
+		return inodeChunks[(iNumber - totalInodes) / inodesPerBlock];
+	}
 
-			//read the free block from disk
-			SysLib.rawread(freeList, freeBlock);
+	// inodeOffset Method
+	// Returns the byte offset of inode iNumber within the block given by inodeBlock.
+	public int inodeOffset(int iNumber){
+		int slot = iNumber < totalInodes ? iNumber : iNumber - totalInodes;
+		return (slot % inodesPerBlock) * inodeSize;
+	}
 
-			//hold the free block location in dummy var
-			int temp = freeList;
+	// inodeStored Method
+	// Returns true if the block holding inode iNumber has been written since format. Added
+	// inodes always are. The others are unused, whatever their block holds.
+	public boolean inodeStored(int iNumber){
+		return iNumber >= totalInodes || iNumber / inodesPerBlock < blankFrom;
+	}
 
-			//update next free block
-			freeList = SysLib.bytes2int(freeBlock, 0);
+	// storeInode Method
+	// Called before inode iNumber is written to a block that is still blank. The blank
+	// blocks below it are cleared, each with a single write, so that all the blocks before
+	// the first blank one read as unused inodes where nothing was written. The caller
+	// writes the block of iNumber itself, starting from zeros, and keeps other inode writes
+	// out meanwhile.
+	public void storeInode(int iNumber){
+		int block = iNumber / inodesPerBlock;
+		for(int i = blankFrom; i < block; i++){
+			SysLib.cwrite(1 + i, new byte[Disk.blockSize]);
+		}
+		blankFrom = Math.max(blankFrom, block + 1);
+	}
 
-			//return free block location
-			return temp;	
+	// growInodes Method
+	// Adds a chunk of 16 unused inodes, taking a free data block for it and, every 255
+	// chunks, another block for the inode map. The chunk is cleared with a single write,
+	// which reads as 16 unused inodes; the map and the new count reach the disk on the next
+	// sync. Returns false if the disk is full or the inode numbers have run out.
+	public boolean growInodes(){
+		if(inodeCount() + inodesPerBlock > maxInodes){
+			return false;
 		}
-		
-		//invalid freeList state, return -1
-		return -1;
+		boolean newMapBlock = chunks % mapEntries == 0;
+		int mapBlock = newMapBlock ? getFreeBlock() : 0;
+		int chunk = getFreeBlock();
+		if(mapBlock == -1 || chunk == -1){
+			if(mapBlock > 0) returnBlock(mapBlock);
+			if(chunk > 0) returnBlock(chunk);
+			return false;
+		}
+
+		if(newMapBlock){
+			mapBlocks = grow(mapBlocks, chunks / mapEntries + 1);
+			mapBlocks[chunks / mapEntries] = (short)mapBlock;
+		}
+		inodeChunks = grow(inodeChunks, chunks + 1);
+		inodeChunks[chunks++] = (short)chunk;
+
+		//clear the chunk, an all-zero inode is an unused one
+		SysLib.cwrite(chunk, new byte[Disk.blockSize]);
+		return true;
+	}
+
+	// Returns array, or a copy of it with at least length entries, doubling its size
+	private short[] grow(short[] array, int length){
+		if(array.length >= length){
+			return array;
+		}
+		short[] bigger = new short[Math.max(length, array.length * 2)];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+	// getFreeBlock Method
+	// The getFreeBlock method returns the lowest free block and marks it as in use. The
+	// bitmap is scanned a 64-bit word at a time starting from the free list head, below
+	// which every block is known to be in use. If there is an error (specifically, the
+	// absence of free blocks) -1 is returned to signify the operation failed.
+	public synchronized int getFreeBlock(){
+		int block = nextFree(freeList);
+		if(block == -1){
+			//no free blocks left
+			return -1;
+		}
+
+		//mark block as in use and move the head past it
+		bitmap[block >> 6] |= 1L << (block & 63);
+		freeList = block + 1;
+		return block;
 	} 
 
-	// returnBlock Method
-	// The returnBlock method attempts to add a newly freed block back to the free list. The newly freed
-	// block is added to the end of the free block queue which operates, by definition, as FIFO. If the
-	// freed block does not conform to the actual disk parameters held in SuperBlock, the operation fails
-	// and returns false.
-	public boolean returnBlock(int blockNumber){
-		//validate that the returned block is within range   !!!MAY BE <= totalBlocks
-		if(blockNumber > 0 && blockNumber < totalBlocks){
-			//dummy variables to hold next free block and second walking pointer
-			int nextFree = freeList;
-			int temp = 0;
-
-			//temp byte array to hold working block
-			byte[] nextBlock = new byte[Disk.blockSize];
-
-			//new block returned to free
-			byte[] newBlock = new byte[Disk.blockSize];
-
-			//erase block
-			for(int i = 0; i < Disk.blockSize; i++){
-				newBlock[i] = 0;
-			}
+	// getFreeBlock Method (with goal)
+	// Returns the first free block at or after goal, so that a file can continue on the block
+	// right after its last one, falling back to the lowest free block. The block is marked
+	// as in use. Returns -1 if the disk is full.
+	public synchronized int getFreeBlock(int goal){
+		int block = (goal >= freeList && goal < totalBlocks) ? nextFree(goal) : -1;
+		if(block == -1){
+			return getFreeBlock();
+		}
+		bitmap[block >> 6] |= 1L << (block & 63);
+		return block;
+	}
 
-			//set next block in new block to -1
-			SysLib.int2bytes(-1,newBlock,0);
+	// reserveRun Method
+	// The reserveRun method looks for count adjacent free blocks, first at or after goal and
+	// then from the free list head, and reserves them for a growing file. Reserved blocks are
+	// in use as far as allocation is concerned, but are stored as free until claimBlock is
+	// called, so a reservation is never leaked on disk. Returns the first block of the run,
+	// or -1 if there is no such run.
+	public synchronized int reserveRun(int goal, int count){
+		int start = (goal >= freeList && goal < totalBlocks) ? findRun(goal, count) : -1;
+		if(start == -1){
+			start = findRun(freeList, count);
+		}
+		if(start == -1){
+			return -1;
+		}
 
-			//while the end of the free list has not been found, keep looking
-			while(nextFree != -1){
-				//get the next free block
-				SysLib.rawread(nextFree, nextBlock);
-				//check the byte id of the following free block
-				temp = SysLib.bytes2int(nextBlock,0);
+		for(int i = start; i < start + count; i++){
+			bitmap[i >> 6] |= 1L << (i & 63);
+			reserved[i >> 6] |= 1L << (i & 63);
+		}
+		if(start == freeList){
+			freeList = start + count;
+		}
+		return start;
+	}
 
-				//if the following free block is -1, this is the end of the queue
-				if(temp == -1){
-					//set next free block to the method argument and write to disk
-					SysLib.int2bytes(blockNumber,nextBlock,0);
-					SysLib.rawwrite(nextFree, nextBlock);
-					SysLib.rawwrite(blockNumber,newBlock);
-					//operation completed, return true
-					return true;
-				}
+	// claimBlock Method
+	// Turns a reserved block into an ordinary allocated block once a file writes to it.
+	public synchronized void claimBlock(int blockNumber){
+		reserved[blockNumber >> 6] &= ~(1L << (blockNumber & 63));
+	}
 
-				//not at end yet, keep walking
-				nextFree = temp;
-			}			
+	// returnBlock Method
+	// The returnBlock method adds a newly freed block back to the free space by clearing its
+	// bit in the bitmap. If the freed block does not conform to the actual disk parameters
+	// held in SuperBlock, or is not in use, the operation fails and returns false.
+	public synchronized boolean returnBlock(int blockNumber){
+		//validate that the returned block is a data block currently in use
+		if(blockNumber >= dataStart() && blockNumber < totalBlocks
+				&& isUsed(blockNumber)){
+			bitmap[blockNumber >> 6] &= ~(1L << (blockNumber & 63));
+			reserved[blockNumber >> 6] &= ~(1L << (blockNumber & 63));
+			//keep the head at the lowest free block
+			if(blockNumber < freeList){
+				freeList = blockNumber;
+			}
+			return true;
 		}
 
 		//invalid block returned, do nothing and return false
@@ -158,8 +318,10 @@ public class SuperBlock{
 	// Format Method
 	// The public format method cleans the disk of all data and resets the correct structure if the
 	// SuperBlock detects and illegal state during initialization of an instance. All instance variables
-	// of SuperBlock are cleared to default values and written back to the newly cleared disk.
-	public void format(int argInodeBlocks){
+	// of SuperBlock are cleared to default values and written back to the newly cleared disk. Data
+	// blocks are no longer chained together, marking them free in the bitmap is enough, and the
+	// inode blocks are only marked blank, so only block zero is written on a small disk.
+	public synchronized void format(int argInodeBlocks){
 		//SysLib.cout("FORMATTING");
 
 		// !!! WHO CLEANS  THE DISK, THIS OR FILESYSTEM
@@ -171,74 +333,146 @@ public class SuperBlock{
 		//set inodeBlocks property
 		totalInodes = argInodeBlocks;
 
+		//no inodes have been added beyond those
+		inodeChunks = new short[0];
+		mapBlocks = new short[0];
+		chunks = 0;
+
 		//!!! FOR  TESTING ONLY
 		inodeBlocks = totalInodes;
 
-		//dummy inode for object creation
-		Inode dummyInode = null;
-
-		//create and write inodes to disk
-		for(int i = 0; i < totalInodes; i++){
-			dummyInode = new Inode();
-			dummyInode.flag = 0;
-			dummyInode.toDisk((short)i);
-		}
+		//no inode block is written yet, every inode reads as unused
+		blankFrom = 0;
 
 		//SysLib.cout("INODES CREATED");
 
-		//set free list head to first free block. first free block is after all iNodes are created
-		//(16 per block) and space is allocated for totalBlocks, freeList, and totalInodes (index
-		// 0 1 and 2)
-		freeList = (totalInodes / 16) + 2;
+		//set free list head to first free block. first free block is after the superblock, all
+		//iNodes (16 per block) and any bitmap blocks
+		freeList = dataStart();
 
-		//create new dummy block for super
-		byte[] newEmpty = null;
+		//superblock, inodes and bitmap blocks are in use, everything else is free
+		bitmap = new long[(totalBlocks + 63) / 64];
+		reserved = new long[bitmap.length];
+		for(int i = 0; i < bitmap.length * 64; i++){
+			if(i < freeList || i >= totalBlocks){
+				bitmap[i >> 6] |= 1L << (i & 63);
+			}
+		}
 
-		//create default number of blocks and write to disk
-		for(int i = freeList; i < defaultBlocks - 1; i++){
-			newEmpty = new byte[Disk.blockSize];
+		//SysLib.cout("BITMAP CREATED");
 
-			//erase block
-			for(int j = 0; j < Disk.blockSize; j++){
-				newEmpty[j] = 0;
-			}
+		//create and write new superblock to disk
+		sync();
 
-			//write the next sequential free block in pointer to next free
-			SysLib.int2bytes(i+1, newEmpty, 0);
+		//SysLib.cout("NEW SUPER CREATED");
+	}
 
-			//write block to disk
-			SysLib.rawwrite(i, newEmpty);
-		}
+	// Returns the first block number after the SuperBlock, inodes and bitmap blocks
+	private int dataStart(){
+		return firstBitmapBlock() + bitmapBlocks();
+	}
 
-		//write final block
-		newEmpty = new byte[Disk.blockSize];
+	// Bitmap blocks, if any, follow the inode blocks
+	private int firstBitmapBlock(){
+		return 1 + inodeBlockCount();
+	}
 
-		//erase block
-		for(int j = 0; j < Disk.blockSize; j++){
-			newEmpty[j] = 0;
-		}
+	// Number of blocks holding the inodes created by format
+	private int inodeBlockCount(){
+		return (totalInodes + inodesPerBlock - 1) / inodesPerBlock;
+	}
 
-		//write the next sequential free block in pointer to next free
-		SysLib.int2bytes(-1, newEmpty, 0);
+	// Number of blocks needed for the part of the bitmap that does not fit in block zero
+	private int bitmapBlocks(){
+		int spill = (totalBlocks + 7) / 8 - (Disk.blockSize - bitmapLocation);
+		return spill > 0 ? (spill + Disk.blockSize - 1) / Disk.blockSize : 0;
+	}
 
-		//write block to disk
-		SysLib.rawwrite(defaultBlocks - 1, newEmpty);	
+	private boolean isUsed(int block){
+		return (bitmap[block >> 6] & (1L << (block & 63))) != 0;
+	}
 
-		//SysLib.cout("BLOCKS CREATED");
+	// Word-scan for the first free block at or after from, -1 if there is none
+	private int nextFree(int from){
+		for(int w = from >> 6; w < bitmap.length; w++){
+			long free = ~bitmap[w];
+			if(w == from >> 6){
+				//ignore blocks below from in the first word
+				free &= -1L << (from & 63);
+			}
+			if(free != 0){
+				int block = (w << 6) + Long.numberOfTrailingZeros(free);
+				return block < totalBlocks ? block : -1;
+			}
+		}
+		return -1;
+	}
 
-		//create and write new superblock to disk
-		byte[] newSuper = new byte[Disk.blockSize];
+	// First block of a run of count free blocks at or after from, -1 if there is none
+	private int findRun(int from, int count){
+		int start = nextFree(from);
+		while(start != -1 && start + count <= totalBlocks){
+			int end = start + 1;
+			while(end < start + count && !isUsed(end)){
+				end++;
+			}
+			if(end == start + count){
+				return start;
+			}
+			//the run was cut short at end, look past it
+			start = nextFree(end);
+		}
+		return -1;
+	}
 
-		//write total number of blocks to new super
-		SysLib.int2bytes(totalBlocks,newSuper,totalBlockLocation);
-		//write total number of inodes to new super
-		SysLib.int2bytes(totalInodes,newSuper,totalInodeLocation);
-		//write free list to new super
-		SysLib.int2bytes(freeList,newSuper,freeListLocation);
+	// Rebuild the in-memory bitmap from block zero and any bitmap blocks
+	private void loadBitmap(byte[] superBlock){
+		byte[] map = new byte[(totalBlocks + 7) / 8];
+		int inSuper = Math.min(map.length, Disk.blockSize - bitmapLocation);
+		System.arraycopy(superBlock, bitmapLocation, map, 0, inSuper);
+		for(int i = 0; i < bitmapBlocks(); i++){
+			byte[] mapBlock = new byte[Disk.blockSize];
+			SysLib.cread(firstBitmapBlock() + i, mapBlock);
+			int from = inSuper + i * Disk.blockSize;
+			System.arraycopy(mapBlock, 0, map, from,
+					Math.min(Disk.blockSize, map.length - from));
+		}
 
-		//write new super to disk
-		SysLib.rawwrite(0,newSuper);
+		bitmap = new long[(totalBlocks + 63) / 64];
+		reserved = new long[bitmap.length];
+		for(int i = 0; i < bitmap.length * 64; i++){
+			if(i >= totalBlocks || (map[i >> 3] & (1 << (i & 7))) != 0){
+				bitmap[i >> 6] |= 1L << (i & 63);
+			}
+		}
+	}
 
-		//SysLib.cout("NEW SUPER CREATED");
+	// Read the inode map chain named in block zero into memory
+	private void loadInodeMap(byte[] superBlock){
+		chunks = SysLib.bytes2int(superBlock,inodeChunksLocation);
+		inodeChunks = new short[chunks];
+		mapBlocks = new short[(chunks + mapEntries - 1) / mapEntries];
+		short next = (short)SysLib.bytes2int(superBlock,inodeMapLocation);
+		for(int m = 0; m < mapBlocks.length; m++){
+			mapBlocks[m] = next;
+			byte[] mapBlock = new byte[Disk.blockSize];
+			SysLib.cread(next, mapBlock);
+			for(int i = 0; i < mapEntries && m * mapEntries + i < chunks; i++){
+				inodeChunks[m * mapEntries + i] = SysLib.bytes2short(mapBlock, i * 2);
+			}
+			next = SysLib.bytes2short(mapBlock, mapEntries * 2);
+		}
+	}
+
+	// Pack the bitmap into bytes, bit j of byte i standing for block 8 * i + j. Reserved
+	// blocks hold no data yet, so they are stored as free.
+	private synchronized byte[] bitmap2bytes(){
+		byte[] map = new byte[(totalBlocks + 7) / 8];
+		for(int i = 0; i < totalBlocks; i++){
+			if(isUsed(i) && (reserved[i >> 6] & (1L << (i & 63))) == 0){
+				map[i >> 3] |= 1 << (i & 7);
+			}
+		}
+		return map;
 	}
 }
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class SysLib {
@@ -56,6 +57,14 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    public static int rawreadv( int[] blkNumbers, byte[] b ) {
+	Object[] args = new Object[2];
+	args[0] = blkNumbers;
+	args[1] = b;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0, args );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -71,6 +80,40 @@ public class SysLib {
 				 Kernel.CWRITE, blkNumber, b );
     }
 
+    public static int creadv( int[] blkNumbers, byte[] b ) {
+	Object[] args = new Object[2];
+	args[0] = blkNumbers;
+	args[1] = b;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0, args );
+    }
+
+    // copy cached bytes straight to or from b, starting offset bytes into
+    // the (first) block; see Cache.read and Cache.write
+    public static int creadv( int[] blkNumbers, int offset, ByteBuffer b ) {
+	Object[] args = new Object[3];
+	args[0] = blkNumbers;
+	args[1] = offset;
+	args[2] = b;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADB, 0, args );
+    }
+
+    public static int cwrite( int blkNumber, int offset, ByteBuffer b,
+			      boolean fresh ) {
+	Object[] args = new Object[3];
+	args[0] = offset;
+	args[1] = b;
+	args[2] = fresh;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEB, blkNumber, args );
+    }
+
+    public static int cprefetch( int[] blkNumbers ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPREFETCH, 0, blkNumbers );
+    }
+
     public static int flush( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CFLUSH, 0, null );
@@ -145,6 +188,18 @@ public class SysLib {
 				 Kernel.WRITE, fd, buffer );
     }
 
+    // read or write the bytes between b's position and its limit, moving
+    // its position past them; b may be a heap or a direct buffer
+    public static int read( int fd, ByteBuffer b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.READ, fd, b );
+    }
+
+    public static int write( int fd, ByteBuffer b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.WRITE, fd, b );
+    }
+
     public static int seek( int fd, int offset, int whence ) {
 	int[] args = new int[2];
 	args[0] = offset;
@@ -162,4 +217,54 @@ public class SysLib {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.DELETE, 0, filename );
     }
+
+    public static int pread( int fd, byte buffer[], int offset ) {
+	Object[] args = new Object[2];
+	args[0] = buffer;
+	args[1] = offset;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PREAD, fd, args );
+    }
+
+    // queue a block read or write and return its id without waiting; the
+    // buffer must be left alone until await( ) or poll( ) says it is done.
+    // Either one forgets the id once it reports the request done, so every
+    // id is collected by exactly one await( ) or one poll( ) that does not
+    // return 0
+    public static int aread( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AREAD, blkNumber, b );
+    }
+
+    // queue reads of several blocks as one batch, blkNumbers[i] landing at
+    // b[i * 512]; ids[i] is set to the id that await( ) and poll( ) take for
+    // blkNumbers[i]
+    public static int areadv( int[] blkNumbers, byte[] b, int[] ids ) {
+	Object[] args = new Object[3];
+	args[0] = blkNumbers;
+	args[1] = b;
+	args[2] = ids;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AREADV, 0, args );
+    }
+
+    public static int awrite( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AWRITE, blkNumber, b );
+    }
+
+    public static int await( int id ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AWAIT, id, null );
+    }
+
+    public static int poll( int id ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.APOLL, id, null );
+    }
+
+    public static int mkdir( String dirName ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MKDIR, 0, dirName );
+    }
 }
@@ -0,0 +1,106 @@
+class Test10 extends Thread {
+  final static int FIRST = 990;    // free blocks at the end of the disk
+  final static int BLOCKS = 8;
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // awrite a batch, then await every id
+      SysLib.cout("Correct behavior of awrite and await............1\n");
+    if ( test2( ) ) // aread the batch back, polling until each is done
+      SysLib.cout("Correct behavior of aread and poll..............1\n");
+    if ( test3( ) ) // an aread queued right after an awrite of its block
+      SysLib.cout("Correct behavior of aread after awrite..........1\n");
+    if ( test4( ) ) // unknown ids and blocks off the disk
+      SysLib.cout("Correct behavior of bad ids and blocks..........1\n");
+    SysLib.format( 48 );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean fail( String what ) {
+    SysLib.cout( what + " (wrong)\n" );
+    return false;
+  }
+
+  private byte[] block( int blockId, int seed ) {
+    byte[] data = new byte[512];
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte )( blockId * 31 + i * seed );
+    return data;
+  }
+
+  private boolean same( byte[] a, byte[] b ) {
+    for ( int i = 0; i < a.length; i++ )
+      if ( a[i] != b[i] )
+        return false;
+    return true;
+  }
+
+  private boolean test1( ) {
+    int[] ids = new int[BLOCKS];
+    for ( int b = 0; b < BLOCKS; b++ ) {
+      ids[b] = SysLib.awrite( FIRST + b, block( FIRST + b, 3 ) );
+      if ( ids[b] < 0 )
+        return fail( "awrite " + ( FIRST + b ) + " = " + ids[b] );
+      for ( int i = 0; i < b; i++ )
+        if ( ids[i] == ids[b] )
+          return fail( "awrite ids " + i + " and " + b + " = " + ids[b] );
+    }
+    for ( int b = BLOCKS - 1; b >= 0; b-- )
+      if ( SysLib.await( ids[b] ) != 0 )
+        return fail( "await " + ids[b] );
+    if ( SysLib.await( ids[0] ) != -1 )
+      return fail( "await " + ids[0] + " twice" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    int[] ids = new int[BLOCKS];
+    byte[][] back = new byte[BLOCKS][512];
+    for ( int b = 0; b < BLOCKS; b++ )
+      if ( ( ids[b] = SysLib.aread( FIRST + b, back[b] ) ) < 0 )
+        return fail( "aread " + ( FIRST + b ) + " = " + ids[b] );
+    for ( int b = 0; b < BLOCKS; b++ ) {
+      int done;
+      while ( ( done = SysLib.poll( ids[b] ) ) == 0 )
+        SysLib.sleep( 10 );
+      if ( done != 1 )
+        return fail( "poll " + ids[b] + " = " + done );
+      if ( SysLib.poll( ids[b] ) != -1 )
+        return fail( "poll " + ids[b] + " twice" );
+      if ( SysLib.await( ids[b] ) != -1 )
+        return fail( "await " + ids[b] + " after poll" );
+      if ( !same( back[b], block( FIRST + b, 3 ) ) )
+        return fail( "block " + ( FIRST + b ) );
+    }
+    return true;
+  }
+
+  private boolean test3( ) {
+    byte[] back = new byte[512];
+    int write = SysLib.awrite( FIRST, block( FIRST, 5 ) );
+    int read = SysLib.aread( FIRST, back );
+    if ( write < 0 || read < 0 )
+      return fail( "awrite, aread = " + write + ", " + read );
+    if ( SysLib.await( read ) != 0 || SysLib.await( write ) != 0 )
+      return fail( "await " + read + ", " + write );
+    if ( !same( back, block( FIRST, 5 ) ) )
+      return fail( "block " + FIRST );
+    return true;
+  }
+
+  private boolean test4( ) {
+    byte[] data = new byte[512];
+    int id = SysLib.aread( FIRST, data );
+    SysLib.await( id );
+    if ( SysLib.poll( id ) != -1 || SysLib.await( id ) != -1 )
+      return fail( "poll, await of a finished id" );
+    if ( SysLib.poll( -5 ) != -1 || SysLib.await( -5 ) != -1 )
+      return fail( "poll, await of -5" );
+    if ( SysLib.aread( 5000, data ) != -1 )
+      return fail( "aread 5000" );
+    if ( SysLib.awrite( -1, data ) != -1 )
+      return fail( "awrite -1" );
+    return true;
+  }
+}
@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+
+class Test11 extends Thread {
+  final static int SIZE = 3000;    // bytes in "bb", just under six blocks
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // write "bb" from a direct buffer in uneven pieces
+      SysLib.cout("Correct behavior of writing a direct buffer.....1\n");
+    if ( test2( ) ) // read it into the middle of a heap buffer
+      SysLib.cout("Correct behavior of reading a heap buffer.......1\n");
+    if ( test3( ) ) // patch it across a block boundary, read it whole
+      SysLib.cout("Correct behavior of reading a direct buffer.....1\n");
+    if ( test4( ) ) // a file small enough to stay inline
+      SysLib.cout("Correct behavior of buffers on an inline file...1\n");
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean fail( String what ) {
+    SysLib.cout( what + " (wrong)\n" );
+    return false;
+  }
+
+  private byte expected( int i ) {
+    return ( byte )( i * 7 + i / 512 );
+  }
+
+  // each piece starts and ends at a different place in its block
+  private boolean test1( ) {
+    ByteBuffer data = ByteBuffer.allocateDirect( SIZE );
+    for ( int i = 0; i < SIZE; i++ )
+      data.put( expected( i ) );
+    data.flip( );
+    int[] pieces = { 10, 13, 600, 1, 511, 1865 };
+    int fd = SysLib.open( "bb", "w" );
+    if ( fd < 0 )
+      return fail( "open bb" );
+    for ( int p = 0; p < pieces.length; p++ ) {
+      int start = data.position( );
+      data.limit( start + pieces[p] );
+      int size = SysLib.write( fd, data );
+      if ( size != pieces[p] )
+        return fail( "write piece " + p + " = " + size );
+      if ( data.position( ) != start + pieces[p] || data.remaining( ) != 0 )
+        return fail( "position after piece " + p + " = " + data.position( ) );
+    }
+    SysLib.close( fd );
+    return true;
+  }
+
+  // two reads, each stopping in the middle of a block, land between
+  // position 50 and the limit of a larger heap buffer
+  private boolean test2( ) {
+    ByteBuffer buffer = ByteBuffer.allocate( SIZE + 100 );
+    int fd = SysLib.open( "bb", "r" );
+    if ( fd < 0 )
+      return fail( "open bb" );
+    buffer.position( 50 ).limit( 50 + 777 );
+    int first = SysLib.read( fd, buffer );
+    if ( first != 777 || buffer.position( ) != 827 || buffer.remaining( ) != 0 )
+      return fail( "read 777 = " + first + " to " + buffer.position( ) );
+    buffer.limit( buffer.capacity( ) );
+    int second = SysLib.read( fd, buffer );
+    SysLib.close( fd );
+    if ( second != SIZE - 777 || buffer.position( ) != 50 + SIZE ||
+         buffer.remaining( ) != 50 )
+      return fail( "read rest = " + second + " to " + buffer.position( ) );
+    for ( int i = 0; i < 50; i++ )
+      if ( buffer.get( i ) != 0 )
+        return fail( "buffer[" + i + "] before position" );
+    for ( int i = 0; i < SIZE; i++ )
+      if ( buffer.get( 50 + i ) != expected( i ) )
+        return fail( "buffer[" + ( 50 + i ) + "]" );
+    return true;
+  }
+
+  // the patch covers the end of block 1 and the start of block 2
+  private boolean test3( ) {
+    byte[] patch = { 1, 2, 3, 4 };
+    int fd = SysLib.open( "bb", "w+" );
+    SysLib.seek( fd, 1022, 0 );
+    ByteBuffer from = ByteBuffer.wrap( patch );
+    if ( SysLib.write( fd, from ) != 4 || from.hasRemaining( ) )
+      return fail( "write patch" );
+    SysLib.close( fd );
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect( SIZE + 200 );
+    fd = SysLib.open( "bb", "r" );
+    int size = SysLib.read( fd, buffer );
+    int again = SysLib.read( fd, buffer );
+    SysLib.close( fd );
+    if ( size != SIZE || buffer.position( ) != SIZE ||
+         buffer.remaining( ) != 200 )
+      return fail( "read bb = " + size + " to " + buffer.position( ) );
+    if ( again != 0 || buffer.position( ) != SIZE )
+      return fail( "read past the end = " + again );
+    for ( int i = 0; i < SIZE; i++ ) {
+      byte want = ( i >= 1022 && i < 1026 ) ? patch[i - 1022] : expected( i );
+      if ( buffer.get( i ) != want )
+        return fail( "buffer[" + i + "] = " + buffer.get( i ) );
+    }
+    return true;
+  }
+
+  private boolean test4( ) {
+    int fd = SysLib.open( "tiny", "w" );
+    ByteBuffer hello = ByteBuffer.wrap( "hello".getBytes( ) );
+    if ( SysLib.write( fd, hello ) != 5 || hello.position( ) != 5 )
+      return fail( "write tiny" );
+    SysLib.close( fd );
+
+    ByteBuffer heap = ByteBuffer.allocate( 10 );
+    ByteBuffer direct = ByteBuffer.allocateDirect( 3 );
+    fd = SysLib.open( "tiny", "r" );
+    int size = SysLib.read( fd, direct );
+    int rest = SysLib.read( fd, heap );
+    SysLib.close( fd );
+    if ( size != 3 || direct.position( ) != 3 || direct.remaining( ) != 0 )
+      return fail( "read tiny = " + size );
+    if ( rest != 2 || heap.position( ) != 2 || heap.remaining( ) != 8 )
+      return fail( "read rest of tiny = " + rest );
+    if ( direct.get( 0 ) != 'h' || direct.get( 2 ) != 'l' ||
+         heap.get( 0 ) != 'l' || heap.get( 1 ) != 'o' )
+      return fail( "tiny" );
+    return true;
+  }
+}
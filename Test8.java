@@ -0,0 +1,117 @@
+class Test8 extends Thread {
+  final static int LOOPS = 10000;
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // mkdir "d" and "d/sub", not twice
+      SysLib.cout("Correct behavior of mkdir.......................1\n");
+    if ( test2( ) ) // write and read "d/sub/f"
+      SysLib.cout("Correct behavior of nested create and lookup....1\n");
+    if ( test3( ) ) // opening a directory or below a missing one
+      SysLib.cout("Correct behavior of opening bad paths...........1\n");
+    if ( test4( ) ) // "d" and "d/sub" stay while not empty
+      SysLib.cout("Correct behavior of removing a full directory...1\n");
+    if ( test5( ) ) // delete "d/sub/f", then "d/sub" and "d"
+      SysLib.cout("Correct behavior of nested delete...............1\n");
+    if ( test6( ) ) // "d/sub" and "d/sub/f" opened by three threads
+      SysLib.cout("Correct behavior of concurrent nested opens.....1\n");
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean fail( String what ) {
+    SysLib.cout( what + " (wrong)\n" );
+    return false;
+  }
+
+  private boolean test1( ) {
+    if ( SysLib.mkdir( "d" ) != 0 )
+      return fail( "mkdir d" );
+    if ( SysLib.mkdir( "d/sub" ) != 0 )
+      return fail( "mkdir d/sub" );
+    if ( SysLib.mkdir( "d/sub" ) != -1 )
+      return fail( "mkdir d/sub twice" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    byte[] data = new byte[600];
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte )i;
+    int fd = SysLib.open( "d/sub/f", "w+" );
+    if ( fd < 0 )
+      return fail( "open d/sub/f" );
+    int size = SysLib.write( fd, data );
+    SysLib.close( fd );
+    if ( size != data.length )
+      return fail( "write d/sub/f = " + size );
+    byte[] back = new byte[data.length];
+    fd = SysLib.open( "/d//sub/f", "r" );
+    if ( fd < 0 )
+      return fail( "open /d//sub/f" );
+    size = SysLib.read( fd, back );
+    SysLib.close( fd );
+    if ( size != data.length )
+      return fail( "read d/sub/f = " + size );
+    for ( int i = 0; i < data.length; i++ )
+      if ( back[i] != data[i] )
+        return fail( "back[" + i + "] = " + back[i] );
+    return true;
+  }
+
+  private boolean test3( ) {
+    if ( SysLib.open( "d/sub", "r" ) != -1 )
+      return fail( "open d/sub" );
+    if ( SysLib.open( "d/none/f", "w" ) != -1 )
+      return fail( "open d/none/f" );
+    if ( SysLib.open( "d/sub/none", "r" ) != -1 )
+      return fail( "open d/sub/none" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    if ( SysLib.delete( "d/sub" ) != -1 )
+      return fail( "delete d/sub" );
+    if ( SysLib.delete( "d" ) != -1 )
+      return fail( "delete d" );
+    int fd = SysLib.open( "d/sub/f", "r" );
+    if ( fd < 0 )
+      return fail( "open d/sub/f after failed deletes" );
+    SysLib.close( fd );
+    return true;
+  }
+
+  private boolean test5( ) {
+    if ( SysLib.delete( "d/sub/f" ) != 0 )
+      return fail( "delete d/sub/f" );
+    if ( SysLib.open( "d/sub/f", "r" ) != -1 )
+      return fail( "open deleted d/sub/f" );
+    if ( SysLib.delete( "d/sub" ) != 0 )
+      return fail( "delete d/sub" );
+    if ( SysLib.delete( "d" ) != 0 )
+      return fail( "delete d" );
+    if ( SysLib.open( "d/sub/f", "w" ) != -1 )
+      return fail( "open d/sub/f in deleted d" );
+    return true;
+  }
+
+  // each Test8a opens and closes its path LOOPS times; a deadlock between
+  // the path lookup and the inode locks never gets past the joins
+  private boolean test6( ) {
+    SysLib.mkdir( "d" );
+    SysLib.mkdir( "d/sub" );
+    int fd = SysLib.open( "d/sub/f", "w" );
+    SysLib.write( fd, new byte[16] );
+    SysLib.close( fd );
+    String[] paths = { "d/sub", "d/sub/f", "d/sub/f" };
+    for ( int i = 0; i < paths.length; i++ ) {
+      String[] cmd = { "Test8a", paths[i], String.valueOf( LOOPS ) };
+      SysLib.exec( cmd );
+    }
+    for ( int i = 0; i < paths.length; i++ )
+      SysLib.join( );
+    fd = SysLib.open( "d/sub/f", "r" );
+    SysLib.close( fd );
+    return fd >= 0;
+  }
+}
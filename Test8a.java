@@ -0,0 +1,18 @@
+class Test8a extends Thread {
+  private String path;
+  private int loops;
+
+  public Test8a( String[] args ) {
+    path = args[0];
+    loops = Integer.parseInt( args[1] );
+  }
+
+  public void run( ) {
+    for ( int i = 0; i < loops; i++ ) {
+      int fd = SysLib.open( path, "r" );
+      if ( fd >= 0 )
+        SysLib.close( fd );
+    }
+    SysLib.exit( );
+  }
+}
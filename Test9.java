@@ -0,0 +1,106 @@
+class Test9 extends Thread {
+  final static int BLOCKS = 300;   // more extents than one index block holds
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // leave every other block of the disk free
+      SysLib.cout("Correct behavior of fragmenting the disk........1\n");
+    if ( test2( ) ) // write "big" into the holes, one block per extent
+      SysLib.cout("Correct behavior of writing a fragmented file...1\n");
+    if ( test3( ) ) // read "big" back from the start
+      SysLib.cout("Correct behavior of reading a fragmented file...1\n");
+    if ( test4( ) ) // delete "big" and write it again in the same holes
+      SysLib.cout("Correct behavior of deleting a fragmented file..1\n");
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private int files = 0;           // one-block files made by test1
+
+  private boolean fail( String what ) {
+    SysLib.cout( what + " (wrong)\n" );
+    return false;
+  }
+
+  // fills the disk with one-block files, which sit on adjacent blocks, and
+  // deletes every other one
+  private boolean test1( ) {
+    byte[] block = new byte[512];
+    while ( true ) {
+      int fd = SysLib.open( "f" + files, "w" );
+      if ( fd < 0 )
+        break;
+      int size = SysLib.write( fd, block );
+      SysLib.close( fd );
+      if ( size != block.length ) {
+        SysLib.delete( "f" + files );
+        break;
+      }
+      files++;
+    }
+    if ( files < BLOCKS * 2 + 20 )
+      return fail( "only " + files + " files fit" );
+    for ( int i = 0; i < files; i += 2 )
+      if ( SysLib.delete( "f" + i ) != 0 )
+        return fail( "delete f" + i );
+    return true;
+  }
+
+  private byte[] data( ) {
+    byte[] data = new byte[BLOCKS * 512];
+    for ( int i = 0; i < data.length; i++ )
+      data[i] = ( byte )( i * 7 + i / 512 );
+    return data;
+  }
+
+  private boolean test2( ) {
+    byte[] data = data( );
+    int fd = SysLib.open( "big", "w" );
+    if ( fd < 0 )
+      return fail( "open big" );
+    // a block at a time, so the file never reserves a run ahead
+    int size = 0;
+    for ( int b = 0; b < BLOCKS; b++ ) {
+      byte[] block = new byte[512];
+      System.arraycopy( data, b * 512, block, 0, 512 );
+      size += SysLib.write( fd, block );
+    }
+    SysLib.close( fd );
+    if ( size != data.length )
+      return fail( "write big = " + size );
+    return true;
+  }
+
+  private boolean test3( ) {
+    byte[] data = data( );
+    byte[] back = new byte[data.length];
+    SysLib.sync( );
+    int fd = SysLib.open( "big", "r" );
+    if ( fd < 0 )
+      return fail( "open big" );
+    if ( SysLib.fsize( fd ) != data.length )
+      return fail( "fsize big = " + SysLib.fsize( fd ) );
+    int size = SysLib.read( fd, back );
+    SysLib.close( fd );
+    if ( size != data.length )
+      return fail( "read big = " + size );
+    for ( int i = 0; i < data.length; i++ )
+      if ( back[i] != data[i] )
+        return fail( "back[" + i + "] = " + back[i] );
+    return true;
+  }
+
+  // the holes only fit "big" a second time if its data blocks and all of
+  // its index blocks were freed
+  private boolean test4( ) {
+    if ( SysLib.delete( "big" ) != 0 )
+      return fail( "delete big" );
+    for ( int round = 0; round < 2; round++ ) {
+      if ( !test2( ) || !test3( ) )
+        return false;
+      if ( SysLib.delete( "big" ) != 0 )
+        return fail( "delete big again" );
+    }
+    return true;
+  }
+}